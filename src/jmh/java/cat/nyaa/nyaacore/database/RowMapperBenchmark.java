@@ -0,0 +1,117 @@
+package cat.nyaa.nyaacore.database;
+
+import cat.nyaa.nyaacore.database.relational.ColumnStructure;
+import cat.nyaa.nyaacore.database.relational.RowMapper;
+import cat.nyaa.nyaacore.database.relational.TableStructure;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.persistence.Column;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a whole result into table objects:
+ * the former by-name {@code getObject} path against {@link RowMapper}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RowMapperBenchmark {
+    @Param({"10000"})
+    public int rows;
+
+    private Connection conn;
+    private TableStructure<BenchTable> table;
+    private String selectSql;
+
+    @Setup
+    public void setup() throws SQLException {
+        conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+        table = TableStructure.fromClass(BenchTable.class);
+        selectSql = "SELECT " + table.getColumnNamesString() + " FROM " + table.getTableName();
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(table.getCreateTableSQL());
+        }
+        conn.setAutoCommit(false);
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO " + table.getTableName() + "(" + table.getColumnNamesString() + ") VALUES(?,?,?,?,?,?)")) {
+            // columns in name order: amount, count, enabled, id, name, score
+            for (int i = 0; i < rows; i++) {
+                stmt.setLong(1, i * 31L);
+                stmt.setInt(2, i % 64);
+                stmt.setInt(3, i % 2);
+                stmt.setLong(4, i);
+                stmt.setString(5, "row-" + i);
+                if (i % 3 == 0) stmt.setNull(6, java.sql.Types.DOUBLE);
+                else stmt.setDouble(6, i / 7.0);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+        conn.commit();
+        conn.setAutoCommit(true);
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        conn.close();
+    }
+
+    @Benchmark
+    public void byName(Blackhole bh) throws SQLException, ReflectiveOperationException {
+        try (PreparedStatement stmt = conn.prepareStatement(selectSql); ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                BenchTable obj = table.newInstance();
+                for (String colName : table.getOrderedColumnName()) {
+                    ColumnStructure column = table.getColumn(colName);
+                    column.setSqlObject(obj, rs.getObject(colName));
+                }
+                bh.consume(obj);
+            }
+        }
+    }
+
+    @Benchmark
+    public void rowMapper(Blackhole bh) throws SQLException, ReflectiveOperationException {
+        RowMapper<BenchTable> mapper = table.getRowMapper(table.getOrderedColumnName());
+        try (PreparedStatement stmt = conn.prepareStatement(selectSql); ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                bh.consume(mapper.map(rs));
+            }
+        }
+    }
+
+    @Benchmark
+    public void rowMapperFromMetaData(Blackhole bh) throws SQLException, ReflectiveOperationException {
+        try (PreparedStatement stmt = conn.prepareStatement(selectSql); ResultSet rs = stmt.executeQuery()) {
+            RowMapper<BenchTable> mapper = RowMapper.fromMetaData(table, rs.getMetaData(), table.getOrderedColumnName());
+            while (rs.next()) {
+                bh.consume(mapper.map(rs));
+            }
+        }
+    }
+
+    @Table(name = "bench")
+    public static class BenchTable {
+        @Id
+        @Column
+        public long id;
+        @Column
+        public String name;
+        @Column
+        public int count;
+        @Column
+        public boolean enabled;
+        @Column
+        public Long amount;
+        @Column
+        public Double score;
+    }
+}
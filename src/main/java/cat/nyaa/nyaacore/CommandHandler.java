@@ -0,0 +1,66 @@
+package cat.nyaa.nyaacore;
+
+import cat.nyaa.nyaacore.database.relational.QueryMetrics;
+import org.bukkit.command.CommandSender;
+
+import java.util.List;
+
+/**
+ * The /nyaacore command
+ */
+public class CommandHandler extends CommandReceiver {
+    public CommandHandler(NyaaCoreLoader plugin) {
+        super(plugin, null);
+    }
+
+    @Override
+    public String getHelpPrefix() {
+        return "";
+    }
+
+    @Override
+    protected boolean showCompleteMessage() {
+        return false;
+    }
+
+    /**
+     * /nyaacore dbstats [stats|slow|reset] [plugin]
+     */
+    @SubCommand(value = "dbstats", permission = "nyaacore.admin")
+    public void dbStats(CommandSender sender, Arguments args) {
+        String action = args.top() == null ? "stats" : args.nextString();
+        String name = args.top() == null ? null : args.nextString();
+        if (!action.equals("stats") && !action.equals("slow") && !action.equals("reset")) {
+            msg(sender, "internal.info.usage_prompt", "/nyaacore dbstats [stats|slow|reset] [plugin]");
+            return;
+        }
+        boolean found = false;
+        for (QueryMetrics metrics : QueryMetrics.getRegistered()) {
+            if (name != null && !metrics.getName().equalsIgnoreCase(name)) continue;
+            found = true;
+            switch (action) {
+                case "reset":
+                    metrics.reset();
+                    msg(sender, "internal.info.dbstats.reset", metrics.getName());
+                    break;
+                case "slow":
+                    List<QueryMetrics.SlowQuery> slowQueries = metrics.getSlowQueries();
+                    msg(sender, "internal.info.dbstats.slow_header", metrics.getName(), slowQueries.size(), metrics.getSlowQueryThreshold());
+                    for (QueryMetrics.SlowQuery slow : slowQueries) {
+                        msg(sender, "internal.info.dbstats.slow", slow.nanos / 1e6, slow.rows, slow.table, slow.sql);
+                    }
+                    break;
+                default:
+                    List<QueryMetrics.Snapshot> snapshots = metrics.getSnapshots();
+                    msg(sender, "internal.info.dbstats.header", metrics.getName(), snapshots.size());
+                    for (QueryMetrics.Snapshot s : snapshots) {
+                        msg(sender, "internal.info.dbstats.entry", s.table, s.operation, s.count, s.errors, s.rows,
+                                s.getAverageMillis(), s.getPercentileMillis(0.95), s.getPercentileMillis(0.99), s.maxNanos / 1e6);
+                    }
+            }
+        }
+        if (!found) {
+            msg(sender, name == null ? "internal.info.dbstats.disabled" : "internal.info.dbstats.not_found", name);
+        }
+    }
+}
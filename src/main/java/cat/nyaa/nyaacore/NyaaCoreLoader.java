@@ -1,7 +1,12 @@
 package cat.nyaa.nyaacore;
 
+import cat.nyaa.nyaacore.database.relational.RowChangeFeed;
 import cat.nyaa.nyaacore.http.client.HttpClient;
 import cat.nyaa.nyaacore.timer.TimerManager;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.server.PluginDisableEvent;
 import org.bukkit.plugin.java.JavaPlugin;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
@@ -24,12 +29,25 @@ public class NyaaCoreLoader extends JavaPlugin {
     @Override
     public void onEnable() {
         HttpClient.init(0);
+        CommandHandler commandHandler = new CommandHandler(this);
+        getCommand("nyaacore").setExecutor(commandHandler);
+        getCommand("nyaacore").setTabCompleter(commandHandler);
+        getServer().getPluginManager().registerEvents(new PluginListener(), this);
         //timerManager.load();
     }
 
     @Override
     public void onDisable() {
         HttpClient.shutdown();
+        RowChangeFeed.unsubscribeAll(this);
         //timerManager.save();
     }
+
+    private static class PluginListener implements Listener {
+        @EventHandler(priority = EventPriority.MONITOR)
+        public void onPluginDisable(PluginDisableEvent event) {
+            // drop the subscriptions of a disabled plugin, they keep its classes reachable
+            RowChangeFeed.unsubscribeAll(event.getPlugin());
+        }
+    }
 }
@@ -1,9 +1,11 @@
 package cat.nyaa.nyaacore.database;
 
+import cat.nyaa.nyaacore.database.relational.Dialect;
+import cat.nyaa.nyaacore.database.relational.QueryMetrics;
+import cat.nyaa.nyaacore.database.relational.RowMapper;
 import cat.nyaa.nyaacore.database.relational.TableStructure;
 import org.bukkit.plugin.Plugin;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -12,35 +14,19 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public final class BundledSQLUtils {
-    /**
-     * build a statement using provided parameters
-     *
-     * @param sql            SQL string
-     * @param replacementMap {{key}} in the file will be replaced by value. Ignored if null. NOTE: sql injection will happen
-     * @param parameters     JDBC's positional parametrized query.
-     * @return statement
-     */
-    private static PreparedStatement buildStatement(Connection conn, String sql, Map<String, String> replacementMap, Object... parameters) {
-        if (replacementMap != null) {
-            for (String key : replacementMap.keySet()) {
-                sql = sql.replace("{{" + key + "}}", replacementMap.get(key));
-            }
-        }
-        try {
-            PreparedStatement stmt = conn.prepareStatement(sql);
-            for (int i = 0; i < parameters.length; i++) {
-                stmt.setObject(i + 1, parameters[i]);
-            }
-            return stmt;
-        } catch (SQLException ex) {
-            throw new RuntimeException(sql, ex);
-        }
-    }
+    private static final int MAX_RENDERED_PER_FILE = 64;
+    /* loaded files per plugin instance, so a reloaded plugin reads its files again */
+    private static final Map<Plugin, Map<String, BundledSQL>> bundledSQLCache = new WeakHashMap<>();
 
     /**
      * Convert a result set to a list of java objects
@@ -54,9 +40,10 @@ public final class BundledSQLUtils {
         try {
             if (rs == null) return new ArrayList<>();
             TableStructure<T> table = TableStructure.fromClass(cls);
+            RowMapper<T> mapper = RowMapper.fromMetaData(table, rs.getMetaData(), table.getOrderedColumnName());
             List<T> results = new ArrayList<T>();
             while (rs.next()) {
-                T obj = table.getObjectFromResultSet(rs);
+                T obj = mapper.map(rs);
                 results.add(obj);
             }
             return results;
@@ -75,37 +62,329 @@ public final class BundledSQLUtils {
      * @return the result set, null if cls is null.
      */
     public static <T> List<T> queryBundledAs(Plugin plugin, Connection conn, String filename, Map<String, String> replacementMap, Class<T> cls, Object... parameters) {
-        String sql;
-        try (
-                InputStream inputStream = plugin.getResource("sql/" + filename);
-                BufferedInputStream bis = new BufferedInputStream(inputStream);
-                ByteArrayOutputStream buf = new ByteArrayOutputStream()
-        ) {
-            int result = bis.read();
-            while (result != -1) {
-                buf.write((byte) result);
-                result = bis.read();
+        try (BundledStatement stmt = prepareBundled(plugin, conn, filename, replacementMap)) {
+            return stmt.queryAs(cls, parameters);
+        }
+    }
+
+    public static void queryBundled(Plugin plugin, Connection conn, String filename, Map<String, String> replacementMap, Object... parameters) {
+        queryBundledAs(plugin, conn, filename, replacementMap, null, parameters);
+    }
+
+    /**
+     * Prepare a SQL file bundled with the plugin once, for queries run in loops.
+     * The statement must be closed by the caller.
+     *
+     * @param filename       full file name, including extension, in resources/sql folder
+     * @param replacementMap {{key}} in the file will be replaced by value. Ignored if null. NOTE: sql injection will happen
+     * @return the prepared statement
+     */
+    public static BundledStatement prepareBundled(Plugin plugin, Connection conn, String filename, Map<String, String> replacementMap) {
+        String sql = getBundledSQL(plugin, filename).render(replacementMap).sql;
+        try {
+            return new BundledStatement(conn.prepareStatement(sql), "sql/" + filename, sql, QueryMetrics.forPlugin(plugin.getName()));
+        } catch (SQLException ex) {
+            throw new RuntimeException(sql, ex);
+        }
+    }
+
+    /**
+     * Execute a SQL script bundled with the plugin as one batch, e.g. a schema migration.
+     * Statements are separated by semicolons outside quotes and comments,
+     * including MySQL backslash escapes and # comments on a MySQL connection, so bodies of triggers or procedures holding semicolons are not supported.
+     * The script takes no parameters.
+     *
+     * @param filename       full file name, including extension, in resources/sql folder
+     * @param replacementMap {{key}} in the file will be replaced by value. Ignored if null. NOTE: sql injection will happen
+     * @return update count of each statement
+     */
+    public static int[] executeBundledScript(Plugin plugin, Connection conn, String filename, Map<String, String> replacementMap) {
+        RenderedSQL rendered = getBundledSQL(plugin, filename).render(replacementMap);
+        QueryMetrics metrics = QueryMetrics.forPlugin(plugin.getName());
+        long start = metrics == null ? 0 : System.nanoTime();
+        long rows = 0;
+        boolean failed = true;
+        try (Statement stmt = conn.createStatement()) {
+            for (String sql : rendered.getStatements(Dialect.of(conn))) {
+                stmt.addBatch(sql);
+            }
+            int[] counts = stmt.executeBatch();
+            for (int count : counts) {
+                if (count > 0) rows += count;
+            }
+            failed = false;
+            return counts;
+        } catch (SQLException ex) {
+            throw new RuntimeException(rendered.sql, ex);
+        } finally {
+            if (metrics != null) {
+                metrics.record("sql/" + filename, "SCRIPT", rendered.sql, System.nanoTime() - start, rows, failed);
+            }
+        }
+    }
+
+    /**
+     * Drop the cached SQL files of a plugin, e.g. after its files on disk changed.
+     * Cached files are also dropped with the plugin instance.
+     */
+    public static void clearCache(Plugin plugin) {
+        synchronized (bundledSQLCache) {
+            bundledSQLCache.remove(plugin);
+        }
+    }
+
+    private static BundledSQL getBundledSQL(Plugin plugin, String filename) {
+        Map<String, BundledSQL> files;
+        synchronized (bundledSQLCache) {
+            files = bundledSQLCache.computeIfAbsent(plugin, p -> new ConcurrentHashMap<>());
+        }
+        return files.computeIfAbsent(filename, f -> new BundledSQL(readResource(plugin, "sql/" + f)));
+    }
+
+    private static String readResource(Plugin plugin, String path) {
+        InputStream resource = plugin.getResource(path);
+        if (resource == null) throw new IllegalArgumentException("Bundled SQL not found: " + path);
+        try (InputStream inputStream = resource; ByteArrayOutputStream buf = new ByteArrayOutputStream()) {
+            byte[] buffer = new byte[4096];
+            int length;
+            while ((length = inputStream.read(buffer)) != -1) {
+                buf.write(buffer, 0, length);
             }
-            sql = buf.toString(StandardCharsets.UTF_8.name());
+            return buf.toString(StandardCharsets.UTF_8.name());
         } catch (IOException ex) {
-            throw new RuntimeException(ex);
+            throw new RuntimeException(path, ex);
+        }
+    }
+
+    /**
+     * A bundled SQL file split at its {{key}} placeholders
+     */
+    private static final class BundledSQL {
+        /* text, key, text, key, ..., text */
+        private final List<String> segments = new ArrayList<>();
+        private final Map<Map<String, String>, RenderedSQL> rendered = new ConcurrentHashMap<>();
+        private final RenderedSQL plain;
+
+        BundledSQL(String sql) {
+            int pos = 0;
+            int open;
+            while ((open = sql.indexOf("{{", pos)) != -1) {
+                int close = sql.indexOf("}}", open + 2);
+                if (close == -1) break;
+                segments.add(sql.substring(pos, open));
+                segments.add(sql.substring(open + 2, close));
+                pos = close + 2;
+            }
+            segments.add(sql.substring(pos));
+            plain = new RenderedSQL(sql);
+        }
+
+        RenderedSQL render(Map<String, String> replacementMap) {
+            if (replacementMap == null || replacementMap.isEmpty() || segments.size() == 1) return plain;
+            RenderedSQL result = rendered.get(replacementMap);
+            if (result != null) return result;
+            StringBuilder sql = new StringBuilder(plain.sql.length());
+            for (int i = 0; i < segments.size(); i++) {
+                String segment = segments.get(i);
+                if (i % 2 == 0) {
+                    sql.append(segment);
+                } else {
+                    String value = replacementMap.get(segment);
+                    if (value == null) sql.append("{{").append(segment).append("}}");
+                    else sql.append(value);
+                }
+            }
+            result = new RenderedSQL(sql.toString());
+            if (rendered.size() >= MAX_RENDERED_PER_FILE) rendered.clear();
+            rendered.put(new HashMap<>(replacementMap), result);
+            return result;
+        }
+    }
+
+    private static final class RenderedSQL {
+        final String sql;
+        private final Map<Dialect, List<String>> statements = new ConcurrentHashMap<>();
+
+        RenderedSQL(String sql) {
+            this.sql = sql;
         }
 
-        try (PreparedStatement stat = buildStatement(conn, sql, replacementMap, parameters)) {
-            boolean hasResult = stat.execute();
-            if (cls == null) {
-                return null;
-            } else if (hasResult) {
-                return parseResultSet(stat.getResultSet(), cls);
+        List<String> getStatements(Dialect dialect) {
+            return statements.computeIfAbsent(dialect, d -> Collections.unmodifiableList(splitStatements(sql, d)));
+        }
+    }
+
+    /**
+     * Split a script at semicolons outside quoted text and comments.
+     * MySQL also escapes quotes in text with a backslash and starts line comments with #.
+     */
+    static List<String> splitStatements(String script, Dialect dialect) {
+        boolean mysql = dialect == Dialect.MYSQL;
+        List<String> statements = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        int i = 0;
+        int length = script.length();
+        while (i < length) {
+            char c = script.charAt(i);
+            if (c == '\'' || c == '"' || c == '`') {
+                int end = i + 1;
+                while (end < length) {
+                    if (mysql && c != '`' && script.charAt(end) == '\\') {
+                        end += 2; // backslash escape
+                        continue;
+                    }
+                    if (script.charAt(end) == c) {
+                        if (end + 1 < length && script.charAt(end + 1) == c) {
+                            end += 2; // doubled quote
+                            continue;
+                        }
+                        break;
+                    }
+                    end++;
+                }
+                end = Math.min(end + 1, length);
+                current.append(script, i, end);
+                i = end;
+            } else if ((c == '-' && i + 1 < length && script.charAt(i + 1) == '-') || (mysql && c == '#')) {
+                int end = script.indexOf('\n', i);
+                i = end == -1 ? length : end;
+            } else if (c == '/' && i + 1 < length && script.charAt(i + 1) == '*') {
+                int end = script.indexOf("*/", i + 2);
+                i = end == -1 ? length : end + 2;
+                current.append(' ');
+            } else if (c == ';') {
+                addStatement(statements, current);
+                i++;
             } else {
-                return new ArrayList<>();
+                current.append(c);
+                i++;
             }
-        } catch (SQLException ex) {
-            throw new RuntimeException(ex);
         }
+        addStatement(statements, current);
+        return statements;
     }
 
-    public static void queryBundled(Plugin plugin, Connection conn, String filename, Map<String, String> replacementMap, Object... parameters) {
-        queryBundledAs(plugin, conn, filename, replacementMap, null, parameters);
+    private static void addStatement(List<String> statements, StringBuilder current) {
+        String statement = current.toString().trim();
+        if (!statement.isEmpty()) statements.add(statement);
+        current.setLength(0);
+    }
+
+    /**
+     * A prepared bundled SQL file, reusable until closed
+     */
+    public static final class BundledStatement implements AutoCloseable {
+        private final PreparedStatement statement;
+        private final String table;
+        private final String sql;
+        private final QueryMetrics metrics;
+
+        private BundledStatement(PreparedStatement statement, String table, String sql, QueryMetrics metrics) {
+            this.statement = statement;
+            this.table = table;
+            this.sql = sql;
+            this.metrics = metrics;
+        }
+
+        public PreparedStatement getStatement() {
+            return statement;
+        }
+
+        /**
+         * Execute the statement with new parameters
+         *
+         * @param cls        class of desired object
+         * @param parameters JDBC's positional parametrized query.
+         * @return the result set, null if cls is null.
+         */
+        public <T> List<T> queryAs(Class<T> cls, Object... parameters) {
+            long start = metrics == null ? 0 : System.nanoTime();
+            long rows = 0;
+            boolean failed = true;
+            try {
+                bind(parameters);
+                boolean hasResult = statement.execute();
+                List<T> results;
+                if (cls == null) {
+                    results = null;
+                } else if (hasResult) {
+                    try (ResultSet rs = statement.getResultSet()) {
+                        results = parseResultSet(rs, cls);
+                    }
+                } else {
+                    results = new ArrayList<>();
+                }
+                rows = hasResult ? (results == null ? 0 : results.size()) : Math.max(statement.getUpdateCount(), 0);
+                failed = false;
+                return results;
+            } catch (SQLException ex) {
+                throw new RuntimeException(ex);
+            } finally {
+                if (metrics != null) {
+                    metrics.record(table, QueryMetrics.getOperation(sql), sql, System.nanoTime() - start, rows, failed);
+                }
+            }
+        }
+
+        /**
+         * Execute the statement with new parameters
+         *
+         * @param parameters JDBC's positional parametrized query.
+         */
+        public void execute(Object... parameters) {
+            queryAs(null, parameters);
+        }
+
+        /**
+         * Add a set of parameters to the batch
+         *
+         * @param parameters JDBC's positional parametrized query.
+         */
+        public void addBatch(Object... parameters) {
+            try {
+                bind(parameters);
+                statement.addBatch();
+            } catch (SQLException ex) {
+                throw new RuntimeException(sql, ex);
+            }
+        }
+
+        /**
+         * @return update count of each parameter set in the batch
+         */
+        public int[] executeBatch() {
+            long start = metrics == null ? 0 : System.nanoTime();
+            long rows = 0;
+            boolean failed = true;
+            try {
+                int[] counts = statement.executeBatch();
+                for (int count : counts) {
+                    if (count > 0) rows += count;
+                }
+                failed = false;
+                return counts;
+            } catch (SQLException ex) {
+                throw new RuntimeException(sql, ex);
+            } finally {
+                if (metrics != null) {
+                    metrics.record(table, QueryMetrics.getOperation(sql) + "_BATCH", sql, System.nanoTime() - start, rows, failed);
+                }
+            }
+        }
+
+        private void bind(Object... parameters) throws SQLException {
+            for (int i = 0; i < parameters.length; i++) {
+                statement.setObject(i + 1, parameters[i]);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                statement.close();
+            } catch (SQLException ex) {
+                throw new RuntimeException(sql, ex);
+            }
+        }
     }
 }
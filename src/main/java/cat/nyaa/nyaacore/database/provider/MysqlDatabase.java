@@ -1,11 +1,18 @@
 package cat.nyaa.nyaacore.database.provider;
 
 import cat.nyaa.nyaacore.database.relational.BaseDatabase;
+import cat.nyaa.nyaacore.database.relational.ConnectionPool;
+import cat.nyaa.nyaacore.database.relational.Dialect;
+import cat.nyaa.nyaacore.database.relational.ReplicaSet;
 import org.bukkit.plugin.Plugin;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 public class MysqlDatabase extends BaseDatabase {
 
@@ -15,48 +22,166 @@ public class MysqlDatabase extends BaseDatabase {
     private String user;
     private String password;
     private Connection connection;
+    private ReplicaSet replicas; // null if reads stay on the primary
+    private long readYourWritesWindow = 0; // nanos
+    private volatile long lastWrite;
 
     public MysqlDatabase(Plugin basePlugin, String jdbcDriver, String dbUrl, String user, String password){
+        this(basePlugin, jdbcDriver, dbUrl, user, password, new ConnectionPool.Settings());
+    }
+
+    public MysqlDatabase(Plugin basePlugin, String jdbcDriver, String dbUrl, String user, String password, ConnectionPool.Settings poolSettings){
         this.plugin = basePlugin;
         this.jdbcDriver = jdbcDriver;
         this.dbUrl = dbUrl;
         this.user = user;
         this.password = password;
-        this.connection = newConnection();
+        this.connectionPool = new ConnectionPool(this::openConnection, poolSettings, plugin.getLogger(), this::discardStatementCache);
+        try {
+            this.connection = openConnection();
+        } catch (SQLException e) {
+            connectionPool.close();
+            throw new RuntimeException("connection failed", e);
+        }
     }
 
     public Connection getConnection() {
         return connection;
     }
 
+    @Override
+    public Dialect getDialect() {
+        return Dialect.MYSQL;
+    }
+
+    @Override
+    public boolean supportsUpsert() {
+        return true;
+    }
+
+    /**
+     * Connector/J only streams a result set in two ways: with server side cursors
+     * (useCursorFetch=true in the URL) and a positive fetch size, or row by row with
+     * Integer.MIN_VALUE. Row by row streaming blocks any other statement on the connection
+     * until the stream is closed, so such a stream gets its own connection.
+     * Server side cursors are enabled with use_cursor_fetch: true in the provider configuration.
+     */
+    @Override
+    public int getStreamingFetchSize(int requested) {
+        if (dbUrl.contains("useCursorFetch=true")) return requested;
+        return Integer.MIN_VALUE;
+    }
+
+    /**
+     * Route the selects of {@link #query(Class)} and asynchronous queries to read replicas.
+     * Writes and transactional queries stay on the primary.
+     *
+     * @param replicaUrls   JDBC URLs of the replicas, using the user and password of the primary
+     * @param poolSettings  pool settings of each replica
+     * @param strategy      how a replica is picked
+     * @param retryInterval milliseconds a replica that cannot connect is skipped
+     */
+    public void setReadReplicas(List<String> replicaUrls, ConnectionPool.Settings poolSettings, ReplicaSet.Strategy strategy, long retryInterval) {
+        ReplicaSet old = replicas;
+        replicas = null;
+        if (old != null) old.close();
+        if (replicaUrls == null || replicaUrls.isEmpty()) return;
+        List<String> names = new ArrayList<>();
+        List<ConnectionPool.ConnectionFactory> factories = new ArrayList<>();
+        for (String url : replicaUrls) {
+            names.add(ReplicaSet.nameOf(url));
+            factories.add(() -> openConnection(url));
+        }
+        replicas = new ReplicaSet(names, factories, poolSettings, strategy, retryInterval, plugin.getLogger(), this::discardStatementCache);
+    }
+
+    /**
+     * @return the read replicas, null if there are none
+     */
+    public ReplicaSet getReadReplicas() {
+        return replicas;
+    }
+
+    public long getReadYourWritesWindow() {
+        return TimeUnit.NANOSECONDS.toMillis(readYourWritesWindow);
+    }
+
+    /**
+     * Read from the primary for a while after each write of this database,
+     * so the plugin reads back what it just wrote despite replication lag.
+     *
+     * @param millis the window, 0 to always read from replicas
+     */
+    public void setReadYourWritesWindow(long millis) {
+        if (millis < 0) throw new IllegalArgumentException("Read-your-writes window must not be negative: " + millis);
+        this.readYourWritesWindow = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public Connection borrowReadConnection() {
+        ReplicaSet replicaSet = replicas;
+        if (replicaSet == null) return null;
+        if (readYourWritesWindow > 0 && System.nanoTime() - lastWrite < readYourWritesWindow) return null;
+        return replicaSet.borrow();
+    }
+
+    @Override
+    public void releaseReadConnection(Connection conn) {
+        ReplicaSet replicaSet = replicas;
+        if (replicaSet == null) throw new IllegalArgumentException("no read replica");
+        replicaSet.release(conn);
+    }
+
+    @Override
+    protected void onWrite() {
+        if (readYourWritesWindow > 0) lastWrite = System.nanoTime();
+    }
+
+    @Override
+    public Logger getLogger() {
+        return plugin.getLogger();
+    }
+
+    /**
+     * Get a connection from the pool
+     */
     @Override
     public Connection newConnection() {
-        Connection conn;
+        return connectionPool.borrow();
+    }
+
+    /**
+     * Open a new physical connection to the server
+     */
+    protected Connection openConnection() throws SQLException {
+        return openConnection(dbUrl);
+    }
+
+    private Connection openConnection(String url) throws SQLException {
         try {
             Class.forName(jdbcDriver);
         } catch (ClassNotFoundException e) {
-            throw new RuntimeException("Jdbc Driver not available", e);
-        }
-        try {
-            conn = DriverManager.getConnection(dbUrl, user, password);
-            conn.setAutoCommit(true);
-        } catch (SQLException e) {
-            throw new RuntimeException("connection failed", e);
+            throw new SQLException("Jdbc Driver not available", e);
         }
+        Connection conn = DriverManager.getConnection(url, user, password);
+        conn.setAutoCommit(true);
         return conn;
     }
 
+    /**
+     * Put the connection back into the pool
+     */
     @Override
     public void recycleConnection(Connection conn) {
-        try {
-            conn.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        connectionPool.release(conn);
     }
 
     @Override
     public void close() {
+        super.close();
+        connectionPool.close();
+        if (replicas != null) replicas.close();
+        discardStatementCache(connection);
         try {
             connection.close();
         } catch (SQLException e) {
@@ -68,7 +193,15 @@ public class MysqlDatabase extends BaseDatabase {
     @Override
     protected Object clone() throws CloneNotSupportedException {
         MysqlDatabase db = (MysqlDatabase) super.clone();
-        db.connection = db.newConnection();
+        db.resetForClone();
+        db.connectionPool = new ConnectionPool(db::openConnection, connectionPool.getSettings(), plugin.getLogger(), db::discardStatementCache);
+        // the clone reads from the primary until given replicas of its own
+        db.replicas = null;
+        try {
+            db.connection = db.openConnection();
+        } catch (SQLException e) {
+            throw new RuntimeException("connection failed", e);
+        }
         return db;
     }
 }
@@ -1,8 +1,13 @@
 package cat.nyaa.nyaacore.database.provider;
 
+import cat.nyaa.nyaacore.database.relational.ConnectionPool;
+import cat.nyaa.nyaacore.database.relational.ReplicaSet;
 import org.apache.commons.lang.Validate;
 import org.bukkit.plugin.Plugin;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 @SuppressWarnings("unchecked")
@@ -19,7 +24,32 @@ public class MysqlProvider implements DatabaseProvider {
         Validate.notNull(url, "Please specify 'url' for MySQL.");
         String username = (String) configuration.get("username");
         String password = (String) configuration.get("password");
+        boolean cursorFetch = ProviderConfig.getBoolean(configuration, "use_cursor_fetch", false);
+        ConnectionPool.Settings poolSettings = ProviderConfig.getPoolSettings(configuration);
 
-        return (T) new MysqlDatabase(plugin, jdbc == null ? "com.mysql.jdbc.Driver" : jdbc, url, username, password);
+        MysqlDatabase db = new MysqlDatabase(plugin, jdbc == null ? "com.mysql.jdbc.Driver" : jdbc, withCursorFetch(url, cursorFetch), username, password, poolSettings);
+        ProviderConfig.applyDatabaseSettings(db, plugin, configuration);
+        // read replicas: replicas (list of URLs), replica_strategy (round_robin, least_loaded),
+        // replica_retry_interval (ms), read_your_writes (ms)
+        List<String> replicas = new ArrayList<>();
+        for (String replica : ProviderConfig.getStringList(configuration, "replicas")) {
+            replicas.add(withCursorFetch(replica, cursorFetch));
+        }
+        if (!replicas.isEmpty()) {
+            String strategy = ProviderConfig.getString(configuration, "replica_strategy", "round_robin");
+            db.setReadReplicas(replicas, poolSettings, ReplicaSet.Strategy.valueOf(strategy.toUpperCase(Locale.ROOT)),
+                    ProviderConfig.getLong(configuration, "replica_retry_interval", 30000));
+            db.setReadYourWritesWindow(ProviderConfig.getLong(configuration, "read_your_writes", 0));
+        }
+        return (T) db;
+    }
+
+    private static String withCursorFetch(String url, boolean cursorFetch) {
+        if (cursorFetch && !url.contains("useCursorFetch=")) {
+            // opt-in: server side cursors for selectStream(), which also makes Connector/J
+            // use server side prepared statements for every statement
+            url += (url.contains("?") ? "&" : "?") + "useCursorFetch=true";
+        }
+        return url;
     }
 }
\ No newline at end of file
@@ -0,0 +1,118 @@
+package cat.nyaa.nyaacore.database.provider;
+
+import cat.nyaa.nyaacore.database.relational.BaseDatabase;
+import cat.nyaa.nyaacore.database.relational.ConnectionPool;
+import cat.nyaa.nyaacore.database.relational.QueryMetrics;
+import cat.nyaa.nyaacore.database.relational.WriteBehindBuffer;
+import org.bukkit.plugin.Plugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Typed lookups on the provider configuration map.
+ * Values may come from YAML (numbers, booleans) or from code (strings).
+ */
+final class ProviderConfig {
+    private ProviderConfig() {
+        throw new UnsupportedOperationException();
+    }
+
+    static String getString(Map<String, Object> configuration, String key, String def) {
+        if (configuration == null) return def;
+        Object value = configuration.get(key);
+        return value == null ? def : value.toString();
+    }
+
+    static int getInt(Map<String, Object> configuration, String key, int def) {
+        if (configuration == null) return def;
+        Object value = configuration.get(key);
+        if (value == null) return def;
+        if (value instanceof Number) return ((Number) value).intValue();
+        try {
+            return Integer.parseInt(value.toString().trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Expecting integer for '" + key + "' but received " + value, ex);
+        }
+    }
+
+    static long getLong(Map<String, Object> configuration, String key, long def) {
+        if (configuration == null) return def;
+        Object value = configuration.get(key);
+        if (value == null) return def;
+        if (value instanceof Number) return ((Number) value).longValue();
+        try {
+            return Long.parseLong(value.toString().trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Expecting integer for '" + key + "' but received " + value, ex);
+        }
+    }
+
+    static boolean getBoolean(Map<String, Object> configuration, String key, boolean def) {
+        if (configuration == null) return def;
+        Object value = configuration.get(key);
+        if (value == null) return def;
+        if (value instanceof Boolean) return (Boolean) value;
+        return Boolean.parseBoolean(value.toString().trim());
+    }
+
+    /**
+     * Read a list from YAML, or a comma separated string
+     */
+    static List<String> getStringList(Map<String, Object> configuration, String key) {
+        List<String> list = new ArrayList<>();
+        if (configuration == null) return list;
+        Object value = configuration.get(key);
+        if (value == null) return list;
+        Iterable<?> items = value instanceof Iterable ? (Iterable<?>) value : Arrays.asList(value.toString().split(","));
+        for (Object item : items) {
+            if (item != null && !item.toString().trim().isEmpty()) list.add(item.toString().trim());
+        }
+        return list;
+    }
+
+    /**
+     * Read the connection pool settings:
+     * pool_min_idle, pool_max_idle, pool_max_size, pool_borrow_timeout (ms),
+     * pool_validation_timeout (s), pool_max_lifetime (ms), pool_leak_detection_threshold (ms)
+     */
+    static ConnectionPool.Settings getPoolSettings(Map<String, Object> configuration) {
+        ConnectionPool.Settings settings = new ConnectionPool.Settings();
+        settings.minIdle = getInt(configuration, "pool_min_idle", settings.minIdle);
+        settings.maxIdle = getInt(configuration, "pool_max_idle", settings.maxIdle);
+        settings.maxSize = getInt(configuration, "pool_max_size", settings.maxSize);
+        settings.borrowTimeout = getLong(configuration, "pool_borrow_timeout", settings.borrowTimeout);
+        settings.validationTimeout = getInt(configuration, "pool_validation_timeout", settings.validationTimeout);
+        settings.maxLifetime = getLong(configuration, "pool_max_lifetime", settings.maxLifetime);
+        settings.leakDetectionThreshold = getLong(configuration, "pool_leak_detection_threshold", settings.leakDetectionThreshold);
+        return settings;
+    }
+
+    /**
+     * Apply the settings shared by all relational providers:
+     * statement_cache_size, batch_size, fetch_size, async_threads, async_queue_size, explain_queries,
+     * write_behind_queue_size, write_behind_flush_rows, write_behind_flush_interval (ms), write_behind_offer_timeout (ms),
+     * metrics, slow_query_threshold (ms, 0 to disable the slow query log),
+     * transaction_retries, transaction_retry_delay (ms)
+     */
+    static void applyDatabaseSettings(BaseDatabase db, Plugin plugin, Map<String, Object> configuration) {
+        db.setStatementCacheSize(getInt(configuration, "statement_cache_size", db.getStatementCacheSize()));
+        db.setBatchSize(getInt(configuration, "batch_size", db.getBatchSize()));
+        db.setFetchSize(getInt(configuration, "fetch_size", db.getFetchSize()));
+        db.setAsyncExecutor(getInt(configuration, "async_threads", db.getAsyncThreads()),
+                getInt(configuration, "async_queue_size", db.getAsyncQueueSize()));
+        db.setExplainQueries(getBoolean(configuration, "explain_queries", db.isExplainQueries()));
+        WriteBehindBuffer.Settings writeBehind = db.getWriteBehindSettings();
+        writeBehind.queueSize = getInt(configuration, "write_behind_queue_size", writeBehind.queueSize);
+        writeBehind.flushRows = getInt(configuration, "write_behind_flush_rows", writeBehind.flushRows);
+        writeBehind.flushInterval = getLong(configuration, "write_behind_flush_interval", writeBehind.flushInterval);
+        writeBehind.offerTimeout = getLong(configuration, "write_behind_offer_timeout", writeBehind.offerTimeout);
+        db.setTransactionRetries(getInt(configuration, "transaction_retries", db.getTransactionRetries()),
+                getLong(configuration, "transaction_retry_delay", db.getTransactionRetryDelay()));
+        if (getBoolean(configuration, "metrics", false)) {
+            db.setMetrics(new QueryMetrics(plugin.getName(), db.getLogger(), getLong(configuration, "slow_query_threshold", 100)));
+        }
+    }
+}
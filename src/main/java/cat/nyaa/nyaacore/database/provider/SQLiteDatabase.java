@@ -1,6 +1,8 @@
 package cat.nyaa.nyaacore.database.provider;
 
 import cat.nyaa.nyaacore.database.relational.BaseDatabase;
+import cat.nyaa.nyaacore.database.relational.ConnectionPool;
+import cat.nyaa.nyaacore.database.relational.Dialect;
 import cat.nyaa.nyaacore.database.relational.TableStructure;
 import org.apache.commons.lang.Validate;
 import org.bukkit.plugin.Plugin;
@@ -9,22 +11,62 @@ import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
 
+/**
+ * SQLite allows one writer per file at a time. Writes of all connections of the database,
+ * including clones, take turns on one writer lock instead of failing with SQLITE_BUSY,
+ * and transactional queries hold it from their first statement to their end.
+ * In WAL mode the selects of non-transactional queries run on a pool of read-only connections,
+ * so they neither wait for the writer nor for each other.
+ */
 public class SQLiteDatabase extends BaseDatabase {
+    public static final int DEFAULT_READERS = 2;
 
     private Plugin plugin;
     private String file;
+    private Pragmas pragmas;
     private Connection dbConn;
+    private Boolean supportsUpsert; // detected on first use
+    private final ReentrantLock writerLock = new ReentrantLock(true);
+    private ConnectionPool readerPool; // null if reads stay on the connection of the query
 
     public SQLiteDatabase(Plugin basePlugin, String fileName) {
+        this(basePlugin, fileName, new ConnectionPool.Settings());
+    }
+
+    public SQLiteDatabase(Plugin basePlugin, String fileName, ConnectionPool.Settings poolSettings) {
+        this(basePlugin, fileName, poolSettings, new Pragmas());
+    }
+
+    public SQLiteDatabase(Plugin basePlugin, String fileName, ConnectionPool.Settings poolSettings, Pragmas pragmas) {
+        pragmas.validate();
         file = fileName;
         plugin = basePlugin;
-        dbConn = newConnection();
+        this.pragmas = pragmas;
+        connectionPool = new ConnectionPool(this::openConnection, poolSettings, plugin.getLogger(), this::discardStatementCache);
+        try {
+            dbConn = openConnection();
+        } catch (SQLException ex) {
+            connectionPool.close();
+            throw new RuntimeException(ex);
+        }
+        setReaders(DEFAULT_READERS);
     }
 
     @Override
     public void close() {
+        super.close();
+        connectionPool.close();
+        if (readerPool != null) readerPool.close();
+        discardStatementCache(dbConn);
         try {
             dbConn.close();
             dbConn = null;
@@ -38,37 +80,189 @@ public class SQLiteDatabase extends BaseDatabase {
         return dbConn;
     }
 
+    @Override
+    public Dialect getDialect() {
+        return Dialect.SQLITE;
+    }
+
+    /**
+     * ON CONFLICT DO UPDATE needs SQLite 3.24.0, the library bundled with the server may be older
+     */
+    @Override
+    public synchronized boolean supportsUpsert() {
+        if (supportsUpsert == null) {
+            try {
+                String[] version = getConnection().getMetaData().getDatabaseProductVersion().split("\\.");
+                int major = Integer.parseInt(version[0]), minor = Integer.parseInt(version[1]);
+                supportsUpsert = major > 3 || major == 3 && minor >= 24;
+            } catch (SQLException | RuntimeException ex) {
+                supportsUpsert = false;
+            }
+        }
+        return supportsUpsert;
+    }
+
+    @Override
+    public Logger getLogger() {
+        return plugin.getLogger();
+    }
+
+    /**
+     * Size the pool of read-only connections. Readers only run beside the writer in WAL mode,
+     * in other journal modes the reads stay on the connection of the query.
+     * Call before the database is used by other threads.
+     *
+     * @param readers max read-only connections, 0 to read on the connection of the query
+     */
+    public void setReaders(int readers) {
+        if (readers < 0) throw new IllegalArgumentException("Readers must not be negative: " + readers);
+        ConnectionPool old = readerPool;
+        readerPool = null;
+        if (old != null) old.close();
+        if (readers == 0 || !"WAL".equals(pragmas.journalMode)) return;
+        ConnectionPool.Settings settings = new ConnectionPool.Settings();
+        ConnectionPool.Settings poolSettings = connectionPool.getSettings();
+        settings.maxSize = readers;
+        settings.maxIdle = readers;
+        settings.borrowTimeout = poolSettings.borrowTimeout;
+        settings.validationTimeout = poolSettings.validationTimeout;
+        settings.maxLifetime = poolSettings.maxLifetime;
+        settings.leakDetectionThreshold = poolSettings.leakDetectionThreshold;
+        readerPool = new ConnectionPool(this::openReader, settings, plugin.getLogger(), this::discardStatementCache);
+    }
+
+    /**
+     * @return the pool of read-only connections, null if there is none
+     */
+    public ConnectionPool getReaderPool() {
+        return readerPool;
+    }
+
+    @Override
+    public Connection borrowReadConnection() {
+        ConnectionPool readers = readerPool;
+        return readers == null ? null : readers.borrow();
+    }
+
+    @Override
+    public void releaseReadConnection(Connection conn) {
+        ConnectionPool readers = readerPool;
+        if (readers == null) throw new IllegalArgumentException("no reader pool");
+        readers.release(conn);
+    }
+
+    /**
+     * Wait up to busy_timeout for the other writers of the database file
+     */
+    @Override
+    public void lockWriter() {
+        try {
+            if (!writerLock.tryLock(pragmas.busyTimeout, TimeUnit.MILLISECONDS)) {
+                String message = "Timeout waiting for the writer of " + file + " after " + pragmas.busyTimeout + "ms";
+                // transient, so inTransaction() retries it
+                throw new RuntimeException(message, new SQLTimeoutException(message));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for the writer of " + file, ex);
+        }
+    }
+
+    @Override
+    public void unlockWriter() {
+        if (!writerLock.isHeldByCurrentThread()) {
+            throw new IllegalStateException("The writer of " + file + " is not held by this thread, end a transaction on the thread that wrote in it");
+        }
+        writerLock.unlock();
+    }
+
+    /**
+     * Get a connection from the pool
+     */
     @Override
     public Connection newConnection() {
-        Connection conn;
+        return connectionPool.borrow();
+    }
+
+    /**
+     * Open a new physical connection to the database file
+     */
+    protected Connection openConnection() throws SQLException {
         File dbFile = new File(plugin.getDataFolder(), file);
         try {
             Class.forName("org.sqlite.JDBC");
-            String connStr = "jdbc:sqlite:" + dbFile.getAbsolutePath();
-            conn = DriverManager.getConnection(connStr);
-            conn.setAutoCommit(true);
-        } catch (ClassNotFoundException | SQLException ex) {
-            throw new RuntimeException(ex);
+        } catch (ClassNotFoundException ex) {
+            throw new SQLException("Jdbc Driver not available", ex);
         }
+        String connStr = "jdbc:sqlite:" + dbFile.getAbsolutePath();
+        Connection conn = DriverManager.getConnection(connStr);
+        try {
+            applyPragmas(conn);
+        } catch (SQLException ex) {
+            conn.close();
+            throw ex;
+        }
+        conn.setAutoCommit(true);
         return conn;
     }
 
-    @Override
-    public void recycleConnection(Connection conn) {
-        try {
-            conn.close();
+    /**
+     * Open a new connection that rejects writes
+     */
+    protected Connection openReader() throws SQLException {
+        Connection conn = openConnection();
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA query_only=ON");
         } catch (SQLException ex) {
-            throw new RuntimeException(ex);
+            conn.close();
+            throw ex;
+        }
+        return conn;
+    }
+
+    /**
+     * Run the configured pragmas on a new connection.
+     * busy_timeout goes first so the journal mode switch may wait for other connections.
+     */
+    protected void applyPragmas(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA busy_timeout=" + pragmas.busyTimeout);
+            if (pragmas.journalMode != null) stmt.execute("PRAGMA journal_mode=" + pragmas.journalMode);
+            if (pragmas.synchronous != null) stmt.execute("PRAGMA synchronous=" + pragmas.synchronous);
+            if (pragmas.mmapSize >= 0) stmt.execute("PRAGMA mmap_size=" + pragmas.mmapSize);
+            if (pragmas.cacheSize != 0) stmt.execute("PRAGMA cache_size=" + pragmas.cacheSize);
+            if (pragmas.tempStore != null) stmt.execute("PRAGMA temp_store=" + pragmas.tempStore);
         }
     }
 
+    public Pragmas getPragmas() {
+        return pragmas;
+    }
+
+    /**
+     * Put the connection back into the pool
+     */
+    @Override
+    public void recycleConnection(Connection conn) {
+        connectionPool.release(conn);
+    }
+
     /**
      * Remember to close the new connection cloned.
      */
     @Override
     protected Object clone() throws CloneNotSupportedException {
         SQLiteDatabase db = (SQLiteDatabase) super.clone();
-        db.dbConn = db.newConnection();
+        db.resetForClone();
+        db.connectionPool = new ConnectionPool(db::openConnection, connectionPool.getSettings(), plugin.getLogger(), db::discardStatementCache);
+        try {
+            db.dbConn = db.openConnection();
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+        // the writer lock is shared with the clone, the readers are not
+        db.readerPool = null;
+        if (readerPool != null) db.setReaders(readerPool.getSettings().maxSize);
         return db;
     }
 
@@ -77,13 +271,62 @@ public class SQLiteDatabase extends BaseDatabase {
     public void createTable(Class<?> cls) {
         Validate.notNull(cls);
         if (createdTableClasses.contains(cls)) return;
-        TableStructure ts = TableStructure.fromClass(cls);
-        String sql = ts.getCreateTableSQL("sqlite");
-        try (Statement smt = getConnection().createStatement()){
-            smt.executeUpdate(sql);
+        synchronized (createdTableClasses) {
+            if (createdTableClasses.contains(cls)) return;
+            TableStructure ts = TableStructure.fromClass(cls);
+            String sql = ts.getCreateTableSQL("sqlite");
+            if (!tableExists(ts.getTableName())) {
+                try (Statement smt = getConnection().createStatement()){
+                    smt.executeUpdate(sql);
+                } catch (SQLException ex) {
+                    throw new RuntimeException(sql, ex);
+                }
+            }
+            createIndexes(ts);
             createdTableClasses.add(cls);
-        } catch (SQLException ex) {
-            throw new RuntimeException(sql, ex);
+        }
+    }
+
+    /**
+     * Pragmas run on every connection of the database.
+     * The defaults favour throughput: with WAL and synchronous=NORMAL readers no longer block
+     * on writers and commits skip the fsync, so the last transactions may be lost on power
+     * failure or OS crash (never on a plain process crash), but the database is not corrupted.
+     * Use synchronous=FULL if every commit must survive a power loss.
+     */
+    public static class Pragmas {
+        private static final List<String> JOURNAL_MODES = Arrays.asList("DELETE", "TRUNCATE", "PERSIST", "MEMORY", "WAL", "OFF");
+        private static final List<String> SYNCHRONOUS = Arrays.asList("OFF", "NORMAL", "FULL", "EXTRA");
+        private static final List<String> TEMP_STORES = Arrays.asList("DEFAULT", "FILE", "MEMORY");
+
+        /* journal_mode, null for the SQLite default (DELETE) */
+        public String journalMode = "WAL";
+        /* synchronous, null for the SQLite default (FULL) */
+        public String synchronous = "NORMAL";
+        /* mmap_size in bytes, 0 disables memory mapping, negative for the SQLite default */
+        public long mmapSize = 256L * 1024 * 1024;
+        /* cache_size, pages if positive, KiB if negative, 0 for the SQLite default */
+        public int cacheSize = -16000;
+        /* temp_store, null for the SQLite default */
+        public String tempStore = "MEMORY";
+        /* busy_timeout in milliseconds, how long a statement waits for a lock held by another connection */
+        public int busyTimeout = 5000;
+
+        /**
+         * Normalize the keyword pragmas, they are concatenated into the pragma statements
+         */
+        void validate() {
+            journalMode = checkKeyword("journal_mode", journalMode, JOURNAL_MODES);
+            synchronous = checkKeyword("synchronous", synchronous, SYNCHRONOUS);
+            tempStore = checkKeyword("temp_store", tempStore, TEMP_STORES);
+            if (busyTimeout < 0) throw new IllegalArgumentException("busy_timeout must not be negative: " + busyTimeout);
+        }
+
+        private static String checkKeyword(String pragma, String value, List<String> allowed) {
+            if (value == null) return null;
+            String upper = value.trim().toUpperCase(Locale.ROOT);
+            if (!allowed.contains(upper)) throw new IllegalArgumentException("Invalid " + pragma + ": " + value + ", expecting one of " + allowed);
+            return upper;
         }
     }
 }
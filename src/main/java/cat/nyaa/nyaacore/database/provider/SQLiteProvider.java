@@ -4,6 +4,22 @@ import org.bukkit.plugin.Plugin;
 
 import java.util.Map;
 
+/**
+ * Configuration keys besides the common ones in {@link ProviderConfig}:
+ * <ul>
+ * <li>file: database file in the plugin data folder</li>
+ * <li>journal_mode: default WAL, readers and the writer no longer block each other</li>
+ * <li>synchronous: default NORMAL, commits are not fsynced in WAL mode and the last
+ * transactions may be lost on power failure or OS crash. Set FULL to make every commit durable</li>
+ * <li>mmap_size: bytes of the file memory mapped for reads, default 268435456</li>
+ * <li>cache_size: page cache, pages if positive or KiB if negative, default -16000</li>
+ * <li>temp_store: default MEMORY</li>
+ * <li>busy_timeout: milliseconds to wait for a lock, default 5000</li>
+ * <li>readers: read-only connections serving non-transactional selects in WAL mode, default 2</li>
+ * </ul>
+ *
+ * @see SQLiteDatabase.Pragmas
+ */
 public class SQLiteProvider implements DatabaseProvider {
 
     @Override
@@ -16,6 +32,16 @@ public class SQLiteProvider implements DatabaseProvider {
         if (file == null) {
             file = plugin.getName() + ".db";
         }
-        return (T) new SQLiteDatabase(plugin, file);
+        SQLiteDatabase.Pragmas pragmas = new SQLiteDatabase.Pragmas();
+        pragmas.journalMode = ProviderConfig.getString(configuration, "journal_mode", pragmas.journalMode);
+        pragmas.synchronous = ProviderConfig.getString(configuration, "synchronous", pragmas.synchronous);
+        pragmas.mmapSize = ProviderConfig.getLong(configuration, "mmap_size", pragmas.mmapSize);
+        pragmas.cacheSize = ProviderConfig.getInt(configuration, "cache_size", pragmas.cacheSize);
+        pragmas.tempStore = ProviderConfig.getString(configuration, "temp_store", pragmas.tempStore);
+        pragmas.busyTimeout = ProviderConfig.getInt(configuration, "busy_timeout", pragmas.busyTimeout);
+        SQLiteDatabase db = new SQLiteDatabase(plugin, file, ProviderConfig.getPoolSettings(configuration), pragmas);
+        db.setReaders(ProviderConfig.getInt(configuration, "readers", SQLiteDatabase.DEFAULT_READERS));
+        ProviderConfig.applyDatabaseSettings(db, plugin, configuration);
+        return (T) db;
     }
 }
\ No newline at end of file
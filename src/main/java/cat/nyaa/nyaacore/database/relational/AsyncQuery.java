@@ -0,0 +1,305 @@
+package cat.nyaa.nyaacore.database.relational;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Run queries on the database executor instead of the calling thread.
+ * <p>
+ * Where clauses are recorded on this object and replayed on a pooled connection
+ * when an operation is submitted, so the same AsyncQuery can be reused.
+ * By default the futures complete on the database thread;
+ * use {@link #syncCallback(Plugin)} to complete them on the server main thread.
+ *
+ * @param <T> the table type
+ */
+public class AsyncQuery<T> {
+    private final BaseDatabase database;
+    private final Class<T> tableClass;
+    private final List<Consumer<Query<T>>> clauses = new ArrayList<>();
+    private Executor callbackExecutor; // null to complete on the database thread
+
+    public AsyncQuery(BaseDatabase database, Class<T> tableClass) {
+        this.database = database;
+        this.tableClass = tableClass;
+    }
+
+    /**
+     * reset the where clauses
+     *
+     * @return self
+     */
+    public AsyncQuery<T> reset() {
+        clauses.clear();
+        return this;
+    }
+
+    public AsyncQuery<T> whereEq(String columnName, Object obj) {
+        return where(columnName, "=", obj);
+    }
+
+    public AsyncQuery<T> where(String columnName, String comparator, Object obj) {
+        if (!TableStructure.fromClass(tableClass).hasColumn(columnName)) throw new IllegalArgumentException("Unknown DataColumn Name");
+        clauses.add(q -> q.where(columnName, comparator, obj));
+        return this;
+    }
+
+    public AsyncQuery<T> whereIn(String columnName, Collection<?> values) {
+        if (!TableStructure.fromClass(tableClass).hasColumn(columnName)) throw new IllegalArgumentException("Unknown DataColumn Name");
+        List<Object> snapshot = new ArrayList<>(values);
+        clauses.add(q -> q.whereIn(columnName, snapshot));
+        return this;
+    }
+
+    public AsyncQuery<T> between(String columnName, Object low, Object high) {
+        if (!TableStructure.fromClass(tableClass).hasColumn(columnName)) throw new IllegalArgumentException("Unknown DataColumn Name");
+        clauses.add(q -> q.between(columnName, low, high));
+        return this;
+    }
+
+    public AsyncQuery<T> orderBy(String columnName, Query.Order order) {
+        if (!TableStructure.fromClass(tableClass).hasColumn(columnName)) throw new IllegalArgumentException("Unknown DataColumn Name: " + columnName);
+        clauses.add(q -> q.orderBy(columnName, order));
+        return this;
+    }
+
+    public AsyncQuery<T> limit(int n) {
+        clauses.add(q -> q.limit(n));
+        return this;
+    }
+
+    public AsyncQuery<T> offset(int n) {
+        clauses.add(q -> q.offset(n));
+        return this;
+    }
+
+    public AsyncQuery<T> after(T lastRow) {
+        clauses.add(q -> q.after(lastRow));
+        return this;
+    }
+
+    /**
+     * Complete the futures returned afterwards on the server main thread,
+     * so callbacks may touch the Bukkit API.
+     *
+     * @param plugin the plugin scheduling the callbacks
+     * @return self
+     */
+    public AsyncQuery<T> syncCallback(Plugin plugin) {
+        this.callbackExecutor = r -> Bukkit.getScheduler().runTask(plugin, r);
+        return this;
+    }
+
+    /**
+     * Complete the futures returned afterwards with the given executor.
+     *
+     * @param executor callback executor, null to complete on the database thread
+     * @return self
+     */
+    public AsyncQuery<T> callbackExecutor(Executor executor) {
+        this.callbackExecutor = executor;
+        return this;
+    }
+
+    public CompletableFuture<List<T>> select() {
+        return submit(Query::select);
+    }
+
+    public CompletableFuture<List<T>> select(String... columns) {
+        return submit(q -> q.select(columns));
+    }
+
+    public CompletableFuture<T> selectUnique() {
+        return submit(Query::selectUnique);
+    }
+
+    public CompletableFuture<T> selectUniqueUnchecked() {
+        return submit(Query::selectUniqueUnchecked);
+    }
+
+    public CompletableFuture<Integer> count() {
+        return submit(Query::count);
+    }
+
+    public CompletableFuture<Double> sum(String column) {
+        return submit(q -> q.sum(column));
+    }
+
+    public CompletableFuture<Long> sumLong(String column) {
+        return submit(q -> q.sumLong(column));
+    }
+
+    public CompletableFuture<Double> avg(String column) {
+        return submit(q -> q.avg(column));
+    }
+
+    public <R> CompletableFuture<R> min(String column) {
+        return submit(q -> q.<R>min(column));
+    }
+
+    public <R> CompletableFuture<R> max(String column) {
+        return submit(q -> q.<R>max(column));
+    }
+
+    /**
+     * Aggregates per distinct value of a column, see {@link Query#groupBy(String)}.
+     * The where clauses are recorded now, like any other operation.
+     *
+     * @param column grouping column
+     * @param <K>    Java type of the grouping column
+     * @return the aggregates
+     */
+    public <K> AsyncGroupBy<K> groupBy(String column) {
+        if (!TableStructure.fromClass(tableClass).hasColumn(column)) throw new IllegalArgumentException("Unknown DataColumn Name: " + column);
+        return new AsyncGroupBy<>(column, new ArrayList<>(clauses));
+    }
+
+    public CompletableFuture<Void> delete() {
+        return submit(q -> {
+            q.delete();
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> insert(T object) {
+        return submit(q -> {
+            q.insert(object);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> update(T obj, String... columns) {
+        return submit(q -> {
+            q.update(obj, columns);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> insertAll(Collection<T> objects) {
+        return submit(q -> {
+            q.insertAll(objects);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> updateAll(Collection<T> objects, String... columns) {
+        return submit(q -> {
+            q.updateAll(objects, columns);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> deleteByKeys(Collection<?> keys) {
+        return submit(q -> {
+            q.deleteByKeys(keys);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> upsert(T object, String... updateColumns) {
+        return submit(q -> {
+            q.upsert(object, updateColumns);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> upsertAll(Collection<T> objects, String... updateColumns) {
+        return submit(q -> {
+            q.upsertAll(objects, updateColumns);
+            return null;
+        });
+    }
+
+    /**
+     * Run an arbitrary action with a query on a pooled connection.
+     * The where clauses of this object are applied to the query first.
+     *
+     * @param action the action
+     * @param <R>    result type
+     * @return future of the result
+     */
+    public <R> CompletableFuture<R> submit(Function<Query<T>, R> action) {
+        return submit(new ArrayList<>(clauses), action);
+    }
+
+    private <R> CompletableFuture<R> submit(List<Consumer<Query<T>>> snapshot, Function<Query<T>, R> action) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+        try {
+            database.getExecutor().execute(() -> {
+                try (Query<T> query = database.queryOnNewConnection(tableClass)) {
+                    for (Consumer<Query<T>> clause : snapshot) {
+                        clause.accept(query);
+                    }
+                    future.complete(action.apply(query));
+                } catch (Throwable ex) {
+                    future.completeExceptionally(ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            future.completeExceptionally(ex);
+        }
+        Executor executor = callbackExecutor;
+        if (executor == null) return future;
+        CompletableFuture<R> callback = new CompletableFuture<>();
+        future.whenComplete((result, ex) -> {
+            try {
+                executor.execute(() -> {
+                    if (ex != null) {
+                        callback.completeExceptionally(ex);
+                    } else {
+                        callback.complete(result);
+                    }
+                });
+            } catch (Throwable rejected) {
+                // e.g. the scheduler refuses tasks of a disabled plugin: fail the callback here instead of never
+                if (ex != null) rejected.addSuppressed(ex);
+                callback.completeExceptionally(rejected);
+            }
+        });
+        return callback;
+    }
+
+    public class AsyncGroupBy<K> {
+        private final String groupColumn;
+        private final List<Consumer<Query<T>>> snapshot;
+
+        AsyncGroupBy(String groupColumn, List<Consumer<Query<T>>> snapshot) {
+            this.groupColumn = groupColumn;
+            this.snapshot = snapshot;
+        }
+
+        public CompletableFuture<Map<K, Integer>> count() {
+            return submit(snapshot, q -> q.<K>groupBy(groupColumn).count());
+        }
+
+        public CompletableFuture<Map<K, Double>> sum(String column) {
+            return submit(snapshot, q -> q.<K>groupBy(groupColumn).sum(column));
+        }
+
+        public CompletableFuture<Map<K, Long>> sumLong(String column) {
+            return submit(snapshot, q -> q.<K>groupBy(groupColumn).sumLong(column));
+        }
+
+        public CompletableFuture<Map<K, Double>> avg(String column) {
+            return submit(snapshot, q -> q.<K>groupBy(groupColumn).avg(column));
+        }
+
+        public <R> CompletableFuture<Map<K, R>> min(String column) {
+            return submit(snapshot, q -> q.<K>groupBy(groupColumn).<R>min(column));
+        }
+
+        public <R> CompletableFuture<Map<K, R>> max(String column) {
+            return submit(snapshot, q -> q.<K>groupBy(groupColumn).<R>max(column));
+        }
+    }
+}
@@ -2,27 +2,517 @@ package cat.nyaa.nyaacore.database.relational;
 
 import org.apache.commons.lang.Validate;
 
-import java.sql.Connection;
-import java.sql.SQLException;
-import java.sql.Statement;
-import java.util.HashSet;
-import java.util.Set;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 @SuppressWarnings("rawtypes")
 public abstract class BaseDatabase implements RelationalDB {
-    protected Set<Class> createdTableClasses = new HashSet<>();
+    protected final Set<Class> createdTableClasses = ConcurrentHashMap.newKeySet();
+
+    /* max prepared statements cached per connection, 0 to disable */
+    protected int statementCacheSize = 64;
+    private StatementCache.Statistics statementCacheStatistics = new StatementCache.Statistics();
+    private Map<Connection, StatementCache> statementCaches = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    /* backs newConnection()/recycleConnection(), null if the implementation does not pool */
+    protected ConnectionPool connectionPool;
+
+    /* threads and queue capacity of the executor behind queryAsync() */
+    protected int asyncThreads = 2;
+    protected int asyncQueueSize = 1024;
+    private ThreadPoolExecutor executor;
+
+    /* JDBC fetch size for streaming selects, 0 for the driver default */
+    protected int fetchSize = 1000;
+
+    /* rows per JDBC batch for the bulk operations of queries */
+    protected int batchSize = 500;
+
+    /* primary key caches of tables annotated with @Cached */
+    private Map<Class<?>, EntityCache<?>> entityCaches = new ConcurrentHashMap<>();
+
+    /* settings of the buffer behind writeBehind() */
+    protected WriteBehindBuffer.Settings writeBehindSettings = new WriteBehindBuffer.Settings();
+    private WriteBehindBuffer writeBehindBuffer;
+
+    /* retries of inTransaction() on lock contention, and the base of their random delay in milliseconds */
+    protected int transactionRetries = 3;
+    protected long transactionRetryDelay = 20;
+    private TransactionContext.Statistics transactionStatistics = new TransactionContext.Statistics();
+
+    /* run EXPLAIN on each new query shape and warn about full table scans */
+    protected boolean explainQueries = false;
+    private volatile QueryMetrics metrics; // null if disabled
+    private Set<String> explainedQueries = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Called by clone() of implementations on the copy: it gets its own executor, write-behind buffer,
+     * statement and entity caches and statistics, so closing one copy leaves the other working.
+     * The copy records no query metrics until given its own.
+     */
+    protected void resetForClone() {
+        executor = null;
+        writeBehindBuffer = null;
+        metrics = null;
+        statementCaches = Collections.synchronizedMap(new IdentityHashMap<>());
+        statementCacheStatistics = new StatementCache.Statistics();
+        entityCaches = new ConcurrentHashMap<>();
+        explainedQueries = ConcurrentHashMap.newKeySet();
+        transactionStatistics = new TransactionContext.Statistics();
+        writeBehindSettings = writeBehindSettings.copy();
+    }
+
+    /**
+     * @return the dialect of the generated SQL
+     */
+    public Dialect getDialect() {
+        return Dialect.GENERIC;
+    }
+
+    /**
+     * @return true if the database understands the upsert clause of its {@link Dialect},
+     * otherwise {@link Query#upsertAll} falls back to update-then-insert
+     */
+    public boolean supportsUpsert() {
+        return false;
+    }
+
+    /**
+     * @return the connection pool, or null if connections are not pooled
+     */
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Get a connection for a select of a non-transactional query, e.g. to a read replica.
+     * It is handed back with {@link #releaseReadConnection(Connection)}.
+     *
+     * @return the connection, null to read on the connection of the query
+     */
+    public Connection borrowReadConnection() {
+        return null;
+    }
+
+    /**
+     * Return a connection from {@link #borrowReadConnection()}
+     */
+    public void releaseReadConnection(Connection conn) {
+        throw new IllegalArgumentException("no read connection borrowed");
+    }
+
+    /**
+     * Called by queries before a statement that writes
+     */
+    protected void onWrite() {
+    }
+
+    /**
+     * Wait for the right to write, for databases that serialize their writers.
+     * Reentrant, each call is paired with {@link #unlockWriter()} on the same thread:
+     * a transaction must end on the thread that wrote in it.
+     */
+    public void lockWriter() {
+    }
+
+    public void unlockWriter() {
+    }
+
+    /**
+     * @return logger for warnings about this database
+     */
+    public Logger getLogger() {
+        return Logger.getLogger(getClass().getName());
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set the default number of rows sent in one JDBC batch by
+     * {@link Query#insertAll}, {@link Query#updateAll} and {@link Query#deleteByKeys}
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        this.batchSize = batchSize;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * Set the default fetch size for {@link Query#selectStream()}
+     *
+     * @param fetchSize rows fetched per round trip, 0 for the driver default
+     */
+    public void setFetchSize(int fetchSize) {
+        if (fetchSize < 0) throw new IllegalArgumentException("Fetch size must not be negative: " + fetchSize);
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Translate the fetch size requested by a streaming select into what the driver
+     * needs to actually stream rows instead of buffering the whole result.
+     *
+     * @param requested the fetch size of the query
+     * @return value passed to {@link java.sql.Statement#setFetchSize(int)}, 0 to leave the default
+     */
+    public int getStreamingFetchSize(int requested) {
+        return requested;
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * Set the max number of prepared statements cached per connection.
+     * Only affects connections that have not been used by a query yet.
+     *
+     * @param statementCacheSize cache size, 0 to disable caching
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    /**
+     * Get the statement cache bound to a connection of this database.
+     *
+     * @param conn the connection
+     * @return the cache, or null if caching is disabled
+     */
+    public StatementCache getStatementCache(Connection conn) {
+        if (statementCacheSize <= 0) return null;
+        return statementCaches.computeIfAbsent(conn, c -> new StatementCache(c, statementCacheSize, statementCacheStatistics));
+    }
+
+    /**
+     * Hit/miss counters summed over all statement caches of this database
+     */
+    public StatementCache.Statistics getStatementCacheStatistics() {
+        return statementCacheStatistics;
+    }
+
+    /**
+     * Close the cached statements of a connection.
+     * Must be called before the connection itself is closed.
+     */
+    protected void discardStatementCache(Connection conn) {
+        StatementCache cache = statementCaches.remove(conn);
+        if (cache != null) cache.close();
+    }
+
+    /**
+     * Get the row cache of a table of this database.
+     *
+     * @param tableClass the table class
+     * @return the cache, or null if the table is not {@link Cached}
+     */
+    @SuppressWarnings("unchecked")
+    public <T> EntityCache<T> getEntityCache(Class<T> tableClass) {
+        TableStructure<T> ts = TableStructure.fromClass(tableClass);
+        Cached settings = ts.getCacheSettings();
+        if (settings == null) return null;
+        return (EntityCache<T>) entityCaches.computeIfAbsent(tableClass, c -> new EntityCache<>(ts, settings.maxEntries(), settings.ttl()));
+    }
+
+    /**
+     * @return the row caches created so far
+     */
+    public Collection<EntityCache<?>> getEntityCaches() {
+        return Collections.unmodifiableCollection(entityCaches.values());
+    }
+
+    /**
+     * @return the statement metrics, null if disabled
+     */
+    public QueryMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Enable statement metrics and register them in {@link QueryMetrics#getRegistered()}.
+     * Disabled metrics cost a null check per statement.
+     *
+     * @param metrics the metrics, null to disable
+     */
+    public void setMetrics(QueryMetrics metrics) {
+        QueryMetrics old = this.metrics;
+        if (old == metrics) return;
+        if (old != null) old.unregister();
+        if (metrics != null) metrics.register();
+        this.metrics = metrics;
+    }
+
+    public boolean isExplainQueries() {
+        return explainQueries;
+    }
+
+    /**
+     * Debug mode: the first time a select/update/delete of a certain shape is executed,
+     * its query plan is fetched and a warning is logged if it scans a whole table.
+     */
+    public void setExplainQueries(boolean explainQueries) {
+        this.explainQueries = explainQueries;
+        if (!explainQueries) explainedQueries.clear();
+    }
+
+    /**
+     * Check the query plan of a statement if explain mode is on
+     * and the statement has not been checked before.
+     * Failures are logged, never thrown.
+     *
+     * @param conn       the connection the statement runs on
+     * @param sql        the statement
+     * @param parameters the parameters of the statement
+     */
+    public void explainQuery(Connection conn, String sql, List<Object> parameters) {
+        if (!explainQueries || !explainedQueries.add(sql)) return;
+        String prefix;
+        switch (getDialect()) {
+            case SQLITE:
+                prefix = "EXPLAIN QUERY PLAN ";
+                break;
+            case MYSQL:
+                prefix = "EXPLAIN ";
+                break;
+            default:
+                return;
+        }
+        List<String> scans = new ArrayList<>();
+        try (PreparedStatement stmt = conn.prepareStatement(prefix + sql)) {
+            SynchronizedQuery.bindParameters(stmt, parameters);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    if (getDialect() == Dialect.SQLITE) {
+                        // "SCAN TABLE t" before 3.24, "SCAN t" after; index scans say "USING ... INDEX"
+                        String detail = rs.getString("detail");
+                        if (detail != null && detail.startsWith("SCAN ") && !detail.contains(" INDEX")) scans.add(detail);
+                    } else if ("ALL".equalsIgnoreCase(rs.getString("type"))) {
+                        scans.add("full scan on " + rs.getString("table"));
+                    }
+                }
+            }
+        } catch (SQLException ex) {
+            getLogger().log(Level.FINE, "Failed to explain " + sql, ex);
+            return;
+        }
+        if (!scans.isEmpty()) {
+            getLogger().warning("Query scans whole table: " + sql + " " + scans);
+        }
+    }
+
+    public int getTransactionRetries() {
+        return transactionRetries;
+    }
+
+    public long getTransactionRetryDelay() {
+        return transactionRetryDelay;
+    }
+
+    /**
+     * Set how {@link #inTransaction(Function)} retries on lock contention.
+     * Retry n waits a random time between half and all of delay * 2^n, at most 2 seconds.
+     *
+     * @param retries max retries, 0 to never retry
+     * @param delay   base delay in milliseconds
+     */
+    public void setTransactionRetries(int retries, long delay) {
+        if (retries < 0 || delay < 0) throw new IllegalArgumentException("retries and delay must not be negative");
+        this.transactionRetries = retries;
+        this.transactionRetryDelay = delay;
+    }
+
+    /**
+     * Counters of {@link #inTransaction(Function)}
+     */
+    public TransactionContext.Statistics getTransactionStatistics() {
+        return transactionStatistics;
+    }
+
+    @Override
+    public <R> R inTransaction(Function<TransactionContext, R> work) {
+        QueryMetrics metrics = this.metrics;
+        long start = System.nanoTime();
+        for (int attempt = 0; ; attempt++) {
+            long attemptStart = System.nanoTime();
+            Connection conn = newConnection();
+            TransactionContext context = new TransactionContext(this, conn, attempt);
+            try {
+                conn.setAutoCommit(false);
+                R result = work.apply(context);
+                context.commit();
+                if (metrics != null) metrics.record("transaction", "COMMIT", "", System.nanoTime() - attemptStart, 0, false);
+                transactionStatistics.record(System.nanoTime() - start, attempt, false);
+                return result;
+            } catch (SQLException | RuntimeException ex) {
+                context.rollback();
+                if (metrics != null) metrics.record("transaction", "ROLLBACK", "", System.nanoTime() - attemptStart, 0, true);
+                if (attempt >= transactionRetries || !isContention(ex)) {
+                    transactionStatistics.record(System.nanoTime() - start, attempt, true);
+                    if (attempt > 0) getLogger().warning("Transaction failed after " + attempt + " retries: " + ex.getMessage());
+                    if (ex instanceof RuntimeException) throw (RuntimeException) ex;
+                    throw new RuntimeException(ex);
+                }
+            } finally {
+                recycleConnection(conn);
+            }
+            try {
+                long bound = Math.min(2000, transactionRetryDelay << Math.min(attempt, 20));
+                Thread.sleep(bound / 2 + ThreadLocalRandom.current().nextLong(bound / 2 + 1));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted waiting to retry a transaction", ex);
+            }
+        }
+    }
+
+    /**
+     * @return true if a cause of the exception is a statement that failed on lock contention
+     */
+    private boolean isContention(Throwable ex) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException && getDialect().isContention((SQLException) cause)) return true;
+            if (cause.getCause() == cause) break;
+        }
+        return false;
+    }
+
+    public WriteBehindBuffer.Settings getWriteBehindSettings() {
+        return writeBehindSettings;
+    }
+
+    /**
+     * Only effective before the first call to {@link #writeBehind()}
+     */
+    public void setWriteBehindSettings(WriteBehindBuffer.Settings writeBehindSettings) {
+        this.writeBehindSettings = writeBehindSettings;
+    }
+
+    /**
+     * Get the write-behind buffer of this database, started on first use.
+     * It is flushed and stopped by {@link #close()}.
+     */
+    @Override
+    public synchronized WriteBehindBuffer writeBehind() {
+        if (writeBehindBuffer == null) {
+            writeBehindBuffer = new WriteBehindBuffer(this, writeBehindSettings);
+        }
+        return writeBehindBuffer;
+    }
+
+    public int getAsyncThreads() {
+        return asyncThreads;
+    }
+
+    public int getAsyncQueueSize() {
+        return asyncQueueSize;
+    }
+
+    /**
+     * Size the executor behind {@link #queryAsync(Class)}.
+     * Only effective before the first asynchronous query.
+     *
+     * @param threads   number of database threads
+     * @param queueSize pending operations accepted before new ones are rejected
+     */
+    public void setAsyncExecutor(int threads, int queueSize) {
+        if (threads <= 0 || queueSize <= 0) throw new IllegalArgumentException("threads and queue size must be positive");
+        this.asyncThreads = threads;
+        this.asyncQueueSize = queueSize;
+    }
+
+    /**
+     * Get the bounded executor that runs asynchronous queries of this database.
+     * Operations submitted while the queue is full are rejected.
+     */
+    public synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            AtomicInteger threadId = new AtomicInteger();
+            String name = "NyaaCore-Database-" + getClass().getSimpleName() + "-";
+            executor = new ThreadPoolExecutor(asyncThreads, asyncThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(asyncQueueSize), r -> {
+                Thread thread = new Thread(r, name + threadId.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
 
     @Override
     public void createTable(Class<?> cls) {
         Validate.notNull(cls);
         if (createdTableClasses.contains(cls)) return;
-        TableStructure ts = TableStructure.fromClass(cls);
-        String sql = ts.getCreateTableSQL();
-        try (Statement smt = getConnection().createStatement()) {
-            smt.executeUpdate(sql);
+        synchronized (createdTableClasses) {
+            if (createdTableClasses.contains(cls)) return;
+            TableStructure ts = TableStructure.fromClass(cls);
+            String sql = ts.getCreateTableSQL();
+            if (!tableExists(ts.getTableName())) {
+                try (Statement smt = getConnection().createStatement()) {
+                    smt.executeUpdate(sql);
+                } catch (SQLException ex) {
+                    throw new RuntimeException(sql, ex);
+                }
+            }
+            createIndexes(ts);
             createdTableClasses.add(cls);
+        }
+    }
+
+    /**
+     * Check the table with the connection metadata, so an existing table is not locked for writing
+     * by CREATE TABLE IF NOT EXISTS, which would wait for the writer of another connection
+     */
+    protected boolean tableExists(String tableName) {
+        Connection conn = getConnection();
+        try (ResultSet rs = conn.getMetaData().getTables(conn.getCatalog(), null, tableName, null)) {
+            while (rs.next()) {
+                if (tableName.equalsIgnoreCase(rs.getString("TABLE_NAME"))) return true;
+            }
+            return false;
+        } catch (SQLException ex) {
+            throw new RuntimeException("table info of " + tableName, ex);
+        }
+    }
+
+    /**
+     * Create the declared indexes of a table that do not exist yet,
+     * so adding an index to an existing table class is picked up on the next start.
+     *
+     * @param ts the table
+     */
+    protected void createIndexes(TableStructure<?> ts) {
+        if (ts.getIndexes().isEmpty()) return;
+        Connection conn = getConnection();
+        Set<String> existing = new HashSet<>();
+        try (ResultSet rs = conn.getMetaData().getIndexInfo(conn.getCatalog(), null, ts.getTableName(), false, false)) {
+            while (rs.next()) {
+                String name = rs.getString("INDEX_NAME");
+                if (name != null) existing.add(name.toLowerCase(Locale.ROOT));
+            }
         } catch (SQLException ex) {
-            throw new RuntimeException(sql, ex);
+            throw new RuntimeException("index info of " + ts.getTableName(), ex);
+        }
+        for (TableStructure<?>.IndexStructure index : ts.getIndexes()) {
+            if (existing.contains(index.name.toLowerCase(Locale.ROOT))) continue;
+            String sql = index.getCreateIndexSQL();
+            try (Statement smt = conn.createStatement()) {
+                smt.executeUpdate(sql);
+            } catch (SQLException ex) {
+                throw new RuntimeException(sql, ex);
+            }
         }
     }
 
@@ -53,6 +543,8 @@ public abstract class BaseDatabase implements RelationalDB {
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
+        // rows read by other connections during the transaction may be stale now
+        entityCaches.values().forEach(EntityCache::invalidateAll);
     }
 
     /**
@@ -63,12 +555,42 @@ public abstract class BaseDatabase implements RelationalDB {
     @Override
     public <T> SynchronizedQuery.NonTransactionalQuery<T> query(Class<T> tableClass) {
         createTable(tableClass);
-        return new SynchronizedQuery.NonTransactionalQuery<T>(tableClass, this.getConnection()) {
+        SynchronizedQuery.NonTransactionalQuery<T> query = new SynchronizedQuery.NonTransactionalQuery<T>(tableClass, this.getConnection(), this) {
             @Override
             public void close() {
 
             }
         };
+        query.readFromReplica = true;
+        return query;
+    }
+
+    @Override
+    public <T> AsyncQuery<T> queryAsync(Class<T> tableClass) {
+        createTable(tableClass);
+        return new AsyncQuery<>(this, tableClass);
+    }
+
+    /**
+     * Create a non-transactional query on a connection from {@link #newConnection()},
+     * the connection is recycled when the query is closed.
+     */
+    public <T> SynchronizedQuery.NonTransactionalQuery<T> queryOnNewConnection(Class<T> tableClass) {
+        createTable(tableClass);
+        Connection conn = newConnection();
+        try {
+            SynchronizedQuery.NonTransactionalQuery<T> query = new SynchronizedQuery.NonTransactionalQuery<T>(tableClass, conn, this) {
+                @Override
+                public void close() {
+                    recycleConnection(conn);
+                }
+            };
+            query.readFromReplica = true;
+            return query;
+        } catch (RuntimeException ex) {
+            recycleConnection(conn);
+            throw ex;
+        }
     }
 
     @Override
@@ -80,7 +602,7 @@ public abstract class BaseDatabase implements RelationalDB {
         } catch (SQLException ex) {
             throw new RuntimeException(ex);
         }
-        return new SynchronizedQuery.TransactionalQuery<T>(tableClass, conn) {
+        return new SynchronizedQuery.TransactionalQuery<T>(tableClass, conn, this) {
             @Override
             public void close() {
                 super.close();
@@ -88,4 +610,34 @@ public abstract class BaseDatabase implements RelationalDB {
             }
         };
     }
+
+    /**
+     * Flush the write-behind buffer, finish pending asynchronous queries and stop the database threads.
+     * Implementations must call this before closing their connections.
+     */
+    @Override
+    public void close() {
+        ThreadPoolExecutor exec;
+        WriteBehindBuffer buffer;
+        synchronized (this) {
+            exec = executor;
+            executor = null;
+            buffer = writeBehindBuffer;
+            writeBehindBuffer = null;
+        }
+        if (buffer != null) buffer.close();
+        setMetrics(null);
+        if (exec == null) return;
+        exec.shutdown();
+        try {
+            if (!exec.awaitTermination(30, TimeUnit.SECONDS)) {
+                getLogger().warning("Asynchronous queries still running after 30 seconds, abandoned");
+                exec.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            getLogger().log(Level.WARNING, "Interrupted waiting for asynchronous queries", ex);
+            exec.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
 }
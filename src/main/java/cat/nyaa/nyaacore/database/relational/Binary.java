@@ -0,0 +1,22 @@
+package cat.nyaa.nyaacore.database.relational;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Store an ItemStack {@link javax.persistence.Column} as binary NBT in a LONGBLOB
+ * instead of base64 text. Rows written in base64 by earlier versions stay readable.
+ * An existing MySQL table needs its column changed to LONGBLOB first.
+ *
+ * @see DataTypeMapping.BinaryItemStackConverter
+ */
+@Target({ElementType.FIELD, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Binary {
+    /**
+     * @return deflate the NBT before storing it
+     */
+    boolean deflate() default true;
+}
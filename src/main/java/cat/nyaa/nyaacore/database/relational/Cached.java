@@ -0,0 +1,29 @@
+package cat.nyaa.nyaacore.database.relational;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Keep recently used rows of a table in memory, by primary key.
+ * <p>
+ * {@link Query#selectUnique()} with only a primary key equality is served from the cache.
+ * Writes through {@link Query} invalidate the affected keys,
+ * writes made directly on the JDBC connection are not noticed.
+ *
+ * @see EntityCache
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Cached {
+    /**
+     * @return max rows kept, least recently used ones are evicted first
+     */
+    int maxEntries() default 1000;
+
+    /**
+     * @return milliseconds a row is kept after it was loaded, 0 to keep until evicted
+     */
+    long ttl() default 0;
+}
@@ -2,9 +2,15 @@ package cat.nyaa.nyaacore.database.relational;
 
 import javax.persistence.Column;
 import javax.persistence.Id;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
 
 /**
  * A java field is converted to a database column in two steps:
@@ -15,6 +21,9 @@ import java.lang.reflect.Modifier;
  *   2. get/set through a pair of getter/setter with matching return/parameter type, the type is the return/parameter type.
  * There are several accepted java types:
  *   {@link DataTypeMapping}
+ * The access method is compiled into method handles once per column,
+ * primitive columns can be read and written without boxing through the typed accessors.
+ * Reflection is used if the handles cannot be created.
  */
 @SuppressWarnings("rawtypes")
 public class ColumnStructure {
@@ -38,6 +47,12 @@ public class ColumnStructure {
     public final DataTypeMapping.Types sqlType;
     public final DataTypeMapping.IDataTypeConverter typeConverter;
 
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private MethodHandle getterHandle;    // (Object)Object, null to use reflection
+    private MethodHandle setterHandle;    // (Object,Object)void, null to use reflection
+    private MethodHandle primitiveGetter; // (Object)long|double|boolean, null if not primitive
+    private MethodHandle primitiveSetter; // (Object,long|double|boolean)void, null if not primitive
+
     /**
      * Constructor for field based table columns
      */
@@ -54,12 +69,14 @@ public class ColumnStructure {
         this.table = table;
         accessMethod = AccessMethod.DIRECT_FIELD;
         field = dataField;
+        field.setAccessible(true);
         setter = null;
         getter = null;
 
         javaType = field.getType();
-        typeConverter = DataTypeMapping.getDataTypeConverter(javaType);
+        typeConverter = DataTypeMapping.getDataTypeConverter(javaType, field);
         sqlType = typeConverter.getSqlType();
+        compileAccessors();
     }
 
     /**
@@ -117,8 +134,48 @@ public class ColumnStructure {
         this.setter = setter;
 
         this.javaType = methodType;
-        this.typeConverter = DataTypeMapping.getDataTypeConverter(this.javaType);
+        this.typeConverter = DataTypeMapping.getDataTypeConverter(this.javaType, dataMethod);
         this.sqlType = this.typeConverter.getSqlType();
+        compileAccessors();
+    }
+
+    private void compileAccessors() {
+        try {
+            MethodHandle get, set;
+            if (accessMethod == AccessMethod.DIRECT_FIELD) {
+                get = lookup.unreflectGetter(field);
+                set = lookup.unreflectSetter(field);
+            } else {
+                get = lookup.unreflect(getter);
+                set = lookup.unreflect(setter);
+            }
+            getterHandle = get.asType(MethodType.methodType(Object.class, Object.class));
+            setterHandle = set.asType(MethodType.methodType(void.class, Object.class, Object.class));
+            Class<?> carrier = getPrimitiveCarrier(javaType);
+            if (carrier != null) {
+                primitiveGetter = MethodHandles.explicitCastArguments(get, MethodType.methodType(carrier, Object.class));
+                primitiveSetter = MethodHandles.explicitCastArguments(set, MethodType.methodType(void.class, Object.class, carrier));
+            }
+        } catch (IllegalAccessException | RuntimeException ex) {
+            // e.g. final fields, keep using reflection
+            getterHandle = null;
+            setterHandle = null;
+            primitiveGetter = null;
+            primitiveSetter = null;
+        }
+    }
+
+    /**
+     * The primitive type used by the typed accessors for a java type:
+     * long for integral types, double for floating types, boolean for boolean
+     *
+     * @return the carrier type, or null if the java type is not primitive
+     */
+    private static Class<?> getPrimitiveCarrier(Class type) {
+        if (type == long.class || type == int.class || type == short.class || type == byte.class) return long.class;
+        if (type == double.class || type == float.class) return double.class;
+        if (type == boolean.class) return boolean.class;
+        return null;
     }
 
     public String getName() {
@@ -136,7 +193,21 @@ public class ColumnStructure {
         return ret;
     }
 
+    /**
+     * @return true if the java type is primitive and the typed accessors can be used
+     */
+    public boolean isPrimitive() {
+        return javaType.isPrimitive();
+    }
+
     public Object getJavaObject(Object entityObj) {
+        if (getterHandle != null) {
+            try {
+                return (Object) getterHandle.invokeExact(entityObj);
+            } catch (Throwable ex) {
+                throw rethrow(ex);
+            }
+        }
         try {
             if (accessMethod == AccessMethod.DIRECT_FIELD) {
                 return field.get(entityObj);
@@ -149,6 +220,14 @@ public class ColumnStructure {
     }
 
     public void setJavaObject(Object entityObj, Object obj) {
+        if (setterHandle != null) {
+            try {
+                setterHandle.invokeExact(entityObj, obj);
+                return;
+            } catch (Throwable ex) {
+                throw rethrow(ex);
+            }
+        }
         try {
             if (accessMethod == AccessMethod.DIRECT_FIELD) {
                 field.set(entityObj, obj);
@@ -160,6 +239,90 @@ public class ColumnStructure {
         }
     }
 
+    /**
+     * Read an integral primitive column without boxing
+     */
+    public long getLong(Object entityObj) {
+        if (primitiveGetter == null) return ((Number) getJavaObject(entityObj)).longValue();
+        try {
+            return (long) primitiveGetter.invokeExact(entityObj);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    /**
+     * Write an integral primitive column without boxing, narrowing if necessary
+     */
+    public void setLong(Object entityObj, long value) {
+        if (primitiveSetter == null) {
+            if (javaType == int.class) setJavaObject(entityObj, (int) value);
+            else if (javaType == short.class) setJavaObject(entityObj, (short) value);
+            else if (javaType == byte.class) setJavaObject(entityObj, (byte) value);
+            else setJavaObject(entityObj, value);
+            return;
+        }
+        try {
+            primitiveSetter.invokeExact(entityObj, value);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    /**
+     * Read a floating point primitive column without boxing
+     */
+    public double getDouble(Object entityObj) {
+        if (primitiveGetter == null) return ((Number) getJavaObject(entityObj)).doubleValue();
+        try {
+            return (double) primitiveGetter.invokeExact(entityObj);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    /**
+     * Write a floating point primitive column without boxing, narrowing if necessary
+     */
+    public void setDouble(Object entityObj, double value) {
+        if (primitiveSetter == null) {
+            setJavaObject(entityObj, javaType == float.class ? (Object) (float) value : (Object) value);
+            return;
+        }
+        try {
+            primitiveSetter.invokeExact(entityObj, value);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    /**
+     * Read a boolean primitive column without boxing
+     */
+    public boolean getBoolean(Object entityObj) {
+        if (primitiveGetter == null) return (Boolean) getJavaObject(entityObj);
+        try {
+            return (boolean) primitiveGetter.invokeExact(entityObj);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    /**
+     * Write a boolean primitive column without boxing
+     */
+    public void setBoolean(Object entityObj, boolean value) {
+        if (primitiveSetter == null) {
+            setJavaObject(entityObj, value);
+            return;
+        }
+        try {
+            primitiveSetter.invokeExact(entityObj, value);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
     @SuppressWarnings("unchecked")
     public Object getSqlObject(Object entityObj) {
         Object javaObj = getJavaObject(entityObj);
@@ -177,4 +340,41 @@ public class ColumnStructure {
             setJavaObject(entityObj, typeConverter.toJavaType(obj));
         }
     }
+
+    /**
+     * Bind the value of this column of the entity to a statement parameter.
+     * Primitive columns are bound with the typed setters, without boxing.
+     *
+     * @param stmt      the statement
+     * @param index     parameter index, starting from 1
+     * @param entityObj the entity
+     */
+    public void bindSqlObject(PreparedStatement stmt, int index, Object entityObj) throws SQLException {
+        if (javaType == long.class) {
+            stmt.setLong(index, getLong(entityObj));
+        } else if (javaType == int.class || javaType == short.class || javaType == byte.class) {
+            stmt.setInt(index, (int) getLong(entityObj));
+        } else if (javaType == double.class) {
+            stmt.setDouble(index, getDouble(entityObj));
+        } else if (javaType == float.class) {
+            stmt.setFloat(index, (float) getDouble(entityObj));
+        } else if (javaType == boolean.class) {
+            stmt.setInt(index, getBoolean(entityObj) ? 1 : 0);
+        } else {
+            Object value = getSqlObject(entityObj);
+            if (value == null) {
+                stmt.setNull(index, Types.NULL);
+            } else if (value instanceof byte[]) {
+                stmt.setBytes(index, (byte[]) value);
+            } else {
+                stmt.setObject(index, value);
+            }
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable ex) {
+        if (ex instanceof RuntimeException) throw (RuntimeException) ex;
+        if (ex instanceof Error) throw (Error) ex;
+        return new RuntimeException(ex);
+    }
 }
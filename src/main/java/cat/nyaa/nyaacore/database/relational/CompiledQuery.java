@@ -0,0 +1,188 @@
+package cat.nyaa.nyaacore.database.relational;
+
+import javax.persistence.NonUniqueResultException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A query with its SQL, row mapper and column converters fixed once,
+ * executed with nothing but the values of its parameters, e.g.
+ * <pre>
+ * CompiledQuery&lt;Player&gt; byName = db.query(Player.class).whereEq("name", CompiledQuery.PARAM).compile();
+ * Player player = byName.selectUniqueUnchecked("alice");
+ * </pre>
+ * Values given to the where clauses instead of {@link #PARAM} are fixed.
+ * The statements run on the connection of the query it was compiled from, with its statement cache,
+ * so compile from {@link RelationalDB#query(Class)} for lookups used for the lifetime of the database.
+ *
+ * @param <T> the table class
+ */
+public class CompiledQuery<T> {
+    /**
+     * Placeholder for a value given on each execution, in the order the placeholders were added
+     */
+    public static final Object PARAM = new Object() {
+        @Override
+        public String toString() {
+            return "?";
+        }
+    };
+
+    private final SynchronizedQuery<T> query;
+    private final int parameterCount;
+    private final RowMapper<T> mapper;
+    private final Template select;
+    private final Template count;
+    private final Template delete;
+    private final Slot keySlot; // the placeholder of "primaryKey=?", null if the where clause is another one
+
+    CompiledQuery(SynchronizedQuery<T> query, int parameterCount, String selectSql, List<Object> selectParameters,
+                  String countSql, String deleteSql, List<Object> whereParameters, Slot keySlot) {
+        this.query = query;
+        this.parameterCount = parameterCount;
+        this.mapper = query.table.getRowMapper(query.table.orderedColumnName);
+        this.select = new Template(selectSql, selectParameters);
+        this.count = new Template(countSql, whereParameters);
+        this.delete = new Template(deleteSql, whereParameters);
+        this.keySlot = keySlot;
+    }
+
+    /**
+     * @return number of values expected by each execution
+     */
+    public int getParameterCount() {
+        return parameterCount;
+    }
+
+    public String getSelectSql() {
+        return select.sql;
+    }
+
+    public List<T> select(Object... parameters) {
+        return query.execute(select.sql, select.bind(parameters), stmt -> {
+            List<T> rows = new ArrayList<>();
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    rows.add(mapper.map(rs));
+                }
+            }
+            return rows;
+        });
+    }
+
+    /**
+     * @return the record, or null if not unique
+     */
+    public T selectUniqueUnchecked(Object... parameters) {
+        return query.execute(select.sql, select.bind(parameters), stmt -> {
+            T row = null;
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    row = mapper.map(rs);
+                    if (rs.next()) row = null;
+                }
+            }
+            return row;
+        });
+    }
+
+    /**
+     * @return the record, or throw exception if not unique
+     */
+    public T selectUnique(Object... parameters) {
+        T result = selectUniqueUnchecked(parameters);
+        if (result == null) {
+            throw new NonUniqueResultException("SQL Selection has no result or not unique");
+        }
+        return result;
+    }
+
+    /**
+     * Ignores ordering, limit and offset, like {@link Query#count()}
+     */
+    public int count(Object... parameters) {
+        return query.execute(count.sql, count.bind(parameters), stmt -> {
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getInt("C");
+                } else {
+                    throw new RuntimeException("COUNT() returns empty result");
+                }
+            }
+        });
+    }
+
+    /**
+     * Ignores ordering, limit and offset, like {@link Query#delete()}
+     */
+    public void delete(Object... parameters) {
+        List<Object> values = delete.bind(parameters);
+        Collection<Object> keys = keySlot == null ? null : Collections.singletonList(keySlot.convert(parameters));
+        query.invalidateCache(keys);
+        query.execute(delete.sql, values, PreparedStatement::executeUpdate);
+        query.invalidateCache(keys);
+        query.publishChanges(RowChangeFeed.Operation.DELETE, () -> keys);
+    }
+
+    /**
+     * A parameter given on execution, in the parameter list of a where clause
+     */
+    static final class Slot {
+        final int ordinal;
+        @SuppressWarnings("rawtypes")
+        final DataTypeMapping.IDataTypeConverter converter;
+
+        Slot(int ordinal, ColumnStructure column) {
+            this.ordinal = ordinal;
+            this.converter = column.typeConverter;
+        }
+
+        @SuppressWarnings("unchecked")
+        Object convert(Object[] parameters) {
+            return converter.toSqlType(parameters[ordinal]);
+        }
+
+        @Override
+        public String toString() {
+            return "?" + (ordinal + 1);
+        }
+    }
+
+    private final class Template {
+        final String sql;
+        final Object[] fixed;
+        final int[] positions; // of the slots in the parameter list
+        final Slot[] slots;
+
+        Template(String sql, List<Object> parameters) {
+            this.sql = sql;
+            this.fixed = parameters.toArray();
+            int n = 0;
+            for (Object p : fixed) if (p instanceof Slot) n++;
+            positions = new int[n];
+            slots = new Slot[n];
+            for (int i = 0, j = 0; i < fixed.length; i++) {
+                if (fixed[i] instanceof Slot) {
+                    positions[j] = i;
+                    slots[j++] = (Slot) fixed[i];
+                }
+            }
+        }
+
+        List<Object> bind(Object[] parameters) {
+            if (parameters.length != parameterCount) {
+                throw new IllegalArgumentException("Expecting " + parameterCount + " parameters but received " + parameters.length);
+            }
+            Object[] values = fixed.clone();
+            for (int i = 0; i < slots.length; i++) {
+                values[positions[i]] = slots[i].convert(parameters);
+            }
+            return Arrays.asList(values);
+        }
+    }
+}
@@ -0,0 +1,449 @@
+package cat.nyaa.nyaacore.database.relational;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded JDBC connection pool.
+ * <p>
+ * Idle connections are handed out most-recently-used first and validated with
+ * {@link Connection#isValid(int)} on borrow. Connections older than the max lifetime are
+ * closed instead of being reused. A shared daemon thread keeps min-idle connections open,
+ * evicts expired ones and reports connections borrowed for longer than the leak detection threshold.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static final ScheduledExecutorService housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "NyaaCore-ConnectionPool-Housekeeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ConnectionFactory factory;
+    private final Settings settings;
+    private final Logger logger;
+    private final Consumer<Connection> closeHook;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private final Map<Connection, PooledConnection> active = new IdentityHashMap<>();
+    private final List<PooledConnection> toDestroy = new ArrayList<>(); // closed outside the lock
+    private int total = 0; // idle + active + being opened
+    private boolean closed = false;
+    private final ScheduledFuture<?> housekeeping;
+
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+
+    /**
+     * @param factory   opens a new physical connection
+     * @param settings  pool settings
+     * @param logger    logger for leak reports
+     * @param closeHook called right before a physical connection is closed, may be null
+     */
+    public ConnectionPool(ConnectionFactory factory, Settings settings, Logger logger, Consumer<Connection> closeHook) {
+        if (settings.maxSize <= 0) throw new IllegalArgumentException("pool max size must be positive");
+        this.factory = factory;
+        this.settings = settings;
+        this.logger = logger;
+        this.closeHook = closeHook;
+        long period = TimeUnit.SECONDS.toMillis(30);
+        if (settings.leakDetectionThreshold > 0) {
+            period = Math.max(1000, Math.min(period, settings.leakDetectionThreshold / 2));
+        }
+        housekeeping = housekeeper.scheduleWithFixedDelay(this::housekeep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public Settings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Get a connection from the pool, opening a new one if none is idle and the pool is not full.
+     * Blocks up to the borrow timeout if the pool is exhausted.
+     *
+     * @return a connection in auto-commit mode
+     */
+    public Connection borrow() {
+        try {
+            return borrow(System.nanoTime(), true);
+        } finally {
+            flushDestroyed();
+        }
+    }
+
+    /**
+     * Get a connection like {@link #borrow()}, but never wait for one to be released
+     *
+     * @return a connection in auto-commit mode, null if the pool is exhausted
+     */
+    public Connection tryBorrow() {
+        try {
+            return borrow(System.nanoTime(), false);
+        } finally {
+            flushDestroyed();
+        }
+    }
+
+    private Connection borrow(long start, boolean wait) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(settings.borrowTimeout);
+        lock.lock();
+        try {
+            while (true) {
+                if (closed) throw new IllegalStateException("connection pool closed");
+                PooledConnection pc = idle.pollFirst();
+                if (pc != null) {
+                    lock.unlock();
+                    boolean usable;
+                    try {
+                        usable = isUsable(pc);
+                    } finally {
+                        lock.lock();
+                    }
+                    if (!usable) {
+                        total--;
+                        destroyLater(pc);
+                        continue;
+                    }
+                    return activate(pc, start);
+                }
+                if (total < settings.maxSize) {
+                    total++;
+                    lock.unlock();
+                    try {
+                        pc = open();
+                    } catch (RuntimeException ex) {
+                        lock.lock();
+                        total--;
+                        available.signal();
+                        throw ex;
+                    }
+                    lock.lock();
+                    return activate(pc, start);
+                }
+                if (!wait) return null;
+                if (remaining <= 0) {
+                    timeouts.incrementAndGet();
+                    throw new RuntimeException("Timeout waiting for a connection, pool size " + settings.maxSize);
+                }
+                remaining = available.awaitNanos(remaining);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for a connection", ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return a borrowed connection. Open transactions are rolled back.
+     * Connections not borrowed from this pool are closed.
+     *
+     * @param conn the connection
+     */
+    public void release(Connection conn) {
+        PooledConnection pc;
+        lock.lock();
+        try {
+            pc = active.remove(conn);
+        } finally {
+            lock.unlock();
+        }
+        if (pc == null) {
+            if (closeHook != null) closeHook.accept(conn);
+            closeQuietly(conn);
+            return;
+        }
+        if (pc.leakReported) {
+            logger.info("Previously reported leaked connection returned after " + (System.currentTimeMillis() - pc.borrowedAt) + "ms");
+        }
+        boolean reusable = !isExpired(pc);
+        try {
+            if (reusable && !conn.getAutoCommit()) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+            conn.clearWarnings();
+        } catch (SQLException ex) {
+            reusable = false;
+        }
+        lock.lock();
+        try {
+            if (reusable && !closed && idle.size() < settings.maxIdle) {
+                pc.borrowStack = null;
+                pc.leakReported = false;
+                idle.offerFirst(pc);
+            } else {
+                total--;
+                destroyLater(pc);
+            }
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+        flushDestroyed();
+    }
+
+    /**
+     * Close idle connections and stop handing out new ones.
+     * Connections still borrowed are closed when released.
+     */
+    @Override
+    public void close() {
+        housekeeping.cancel(false);
+        lock.lock();
+        try {
+            closed = true;
+            PooledConnection pc;
+            while ((pc = idle.pollFirst()) != null) {
+                total--;
+                destroyLater(pc);
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        flushDestroyed();
+    }
+
+    public Statistics getStatistics() {
+        lock.lock();
+        try {
+            return new Statistics(active.size(), idle.size(), total, borrowCount.get(), waitNanos.get(), maxWaitNanos.get(),
+                    timeouts.get(), created.get(), destroyed.get(), validationFailures.get(), leaks.get());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* lock must be held */
+    private Connection activate(PooledConnection pc, long borrowStart) {
+        pc.borrowedAt = System.currentTimeMillis();
+        if (settings.leakDetectionThreshold > 0) {
+            pc.borrowStack = new Throwable("Connection borrowed here");
+        }
+        active.put(pc.connection, pc);
+        long waited = System.nanoTime() - borrowStart;
+        borrowCount.incrementAndGet();
+        waitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        return pc.connection;
+    }
+
+    private PooledConnection open() {
+        try {
+            Connection conn = factory.open();
+            created.incrementAndGet();
+            return new PooledConnection(conn);
+        } catch (SQLException ex) {
+            throw new RuntimeException("connection failed", ex);
+        }
+    }
+
+    private boolean isExpired(PooledConnection pc) {
+        return settings.maxLifetime > 0 && System.currentTimeMillis() - pc.createdAt > settings.maxLifetime;
+    }
+
+    private boolean isUsable(PooledConnection pc) {
+        if (isExpired(pc)) return false;
+        if (settings.validationTimeout < 0) return true;
+        try {
+            if (pc.connection.isValid(settings.validationTimeout)) return true;
+        } catch (SQLException ignored) {
+        }
+        validationFailures.incrementAndGet();
+        return false;
+    }
+
+    /* lock must be held */
+    private void destroyLater(PooledConnection pc) {
+        toDestroy.add(pc);
+    }
+
+    private void flushDestroyed() {
+        List<PooledConnection> list;
+        lock.lock();
+        try {
+            if (toDestroy.isEmpty()) return;
+            list = new ArrayList<>(toDestroy);
+            toDestroy.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (PooledConnection pc : list) {
+            destroyed.incrementAndGet();
+            if (closeHook != null) closeHook.accept(pc.connection);
+            closeQuietly(pc.connection);
+        }
+    }
+
+    private void housekeep() {
+        try {
+            List<PooledConnection> leaked = new ArrayList<>();
+            int missing;
+            lock.lock();
+            try {
+                if (closed) return;
+                Iterator<PooledConnection> it = idle.iterator();
+                while (it.hasNext()) {
+                    PooledConnection pc = it.next();
+                    if (isExpired(pc)) {
+                        it.remove();
+                        total--;
+                        destroyLater(pc);
+                    }
+                }
+                if (settings.leakDetectionThreshold > 0) {
+                    long now = System.currentTimeMillis();
+                    for (PooledConnection pc : active.values()) {
+                        if (!pc.leakReported && now - pc.borrowedAt > settings.leakDetectionThreshold) {
+                            pc.leakReported = true;
+                            leaked.add(pc);
+                        }
+                    }
+                }
+                missing = Math.min(settings.minIdle - idle.size(), settings.maxSize - total);
+                if (missing > 0) total += missing;
+            } finally {
+                lock.unlock();
+            }
+            flushDestroyed();
+            for (PooledConnection pc : leaked) {
+                leaks.incrementAndGet();
+                logger.log(Level.WARNING, "Possible connection leak, borrowed for more than " + settings.leakDetectionThreshold + "ms", pc.borrowStack);
+            }
+            for (int i = 0; i < missing; i++) {
+                PooledConnection pc = null;
+                try {
+                    pc = open();
+                } catch (RuntimeException ex) {
+                    logger.log(Level.WARNING, "Failed to open idle connection", ex);
+                }
+                lock.lock();
+                try {
+                    if (pc == null) {
+                        total--;
+                    } else if (closed) {
+                        total--;
+                        destroyLater(pc);
+                    } else {
+                        idle.offerLast(pc);
+                        available.signal();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            flushDestroyed();
+        } catch (RuntimeException ex) {
+            logger.log(Level.WARNING, "Connection pool housekeeping failed", ex);
+        }
+    }
+
+    private static void closeQuietly(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    @FunctionalInterface
+    public interface ConnectionFactory {
+        Connection open() throws SQLException;
+    }
+
+    private static class PooledConnection {
+        final Connection connection;
+        final long createdAt = System.currentTimeMillis();
+        long borrowedAt;
+        Throwable borrowStack;
+        boolean leakReported;
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    /**
+     * Pool settings, all durations are in milliseconds unless noted
+     */
+    public static class Settings {
+        /* idle connections kept open by the housekeeper */
+        public int minIdle = 0;
+        /* idle connections above this are closed on release */
+        public int maxIdle = 4;
+        /* max connections, borrowed or idle */
+        public int maxSize = 8;
+        /* how long borrow() waits when the pool is exhausted */
+        public long borrowTimeout = 30000;
+        /* isValid() timeout on borrow, in seconds. 0 means no timeout, negative disables validation */
+        public int validationTimeout = 5;
+        /* connections older than this are closed instead of reused, 0 to keep forever */
+        public long maxLifetime = 1800000;
+        /* report connections borrowed longer than this, 0 to disable */
+        public long leakDetectionThreshold = 0;
+    }
+
+    /**
+     * A snapshot of pool state and counters
+     */
+    public static class Statistics {
+        public final int active;
+        public final int idle;
+        public final int total;
+        public final long borrowCount;
+        public final long totalWaitNanos;
+        public final long maxWaitNanos;
+        public final long timeouts;
+        public final long created;
+        public final long destroyed;
+        public final long validationFailures;
+        public final long leaks;
+
+        Statistics(int active, int idle, int total, long borrowCount, long totalWaitNanos, long maxWaitNanos,
+                   long timeouts, long created, long destroyed, long validationFailures, long leaks) {
+            this.active = active;
+            this.idle = idle;
+            this.total = total;
+            this.borrowCount = borrowCount;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+            this.timeouts = timeouts;
+            this.created = created;
+            this.destroyed = destroyed;
+            this.validationFailures = validationFailures;
+            this.leaks = leaks;
+        }
+
+        /**
+         * @return average time borrow() waited, in milliseconds
+         */
+        public double getAverageWaitMillis() {
+            return borrowCount == 0 ? 0 : totalWaitNanos / 1e6 / borrowCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("active=%d, idle=%d, total=%d, borrows=%d, avgWait=%.3fms, maxWait=%.3fms, timeouts=%d, created=%d, destroyed=%d, leaks=%d",
+                    active, idle, total, borrowCount, getAverageWaitMillis(), maxWaitNanos / 1e6, timeouts, created, destroyed, leaks);
+        }
+    }
+}
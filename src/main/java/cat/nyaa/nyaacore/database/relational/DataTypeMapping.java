@@ -1,11 +1,18 @@
 package cat.nyaa.nyaacore.database.relational;
 
 import cat.nyaa.nyaacore.utils.ItemStackUtils;
-import org.apache.commons.lang.NotImplementedException;
 import org.bukkit.inventory.ItemStack;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.AnnotatedElement;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import static cat.nyaa.nyaacore.database.relational.DataTypeMapping.Types.*;
 
@@ -22,6 +29,7 @@ import static cat.nyaa.nyaacore.database.relational.DataTypeMapping.Types.*;
  *   9. Any type can be serialized/deserialized using toString() and fromString()/parse() (e.g. ZonedDateTime)
  *                    => MEDIUMTEXT     [toString() and fromString()/parse()]
  *   10. byte[]        => LONGBLOB     [no conversion]
+ *   11. ItemStack with {@link Binary} => LONGBLOB [itemToBinary(), optionally deflated]
  */
 public class DataTypeMapping {
     public enum Types {
@@ -200,6 +208,119 @@ public class DataTypeMapping {
         }
     }
 
+    public static class ByteArrayConverter implements IDataTypeConverter<byte[]> {
+        public static ByteArrayConverter INSTANCE = new ByteArrayConverter();
+        @Override
+        public byte[] toJavaType(Object obj) {
+            if (obj instanceof byte[]) {
+                return (byte[]) obj;
+            } else {
+                throw new IllegalArgumentException("Expecting byte[] but received " + obj.toString());
+            }
+        }
+
+        @Override
+        public Types getSqlType() {
+            return LONGBLOB;
+        }
+    }
+
+    /**
+     * Stores the NBT of the item as bytes, deflated if enabled.
+     * Reads tell the formats apart by the first byte:
+     * 0x0A (NBT compound) is raw NBT, 0x78 is a zlib header,
+     * anything else is the base64 text of {@link ItemStackConverter} ('e').
+     */
+    public static class BinaryItemStackConverter implements IDataTypeConverter<ItemStack> {
+        public static BinaryItemStackConverter DEFLATED = new BinaryItemStackConverter(true);
+        public static BinaryItemStackConverter RAW = new BinaryItemStackConverter(false);
+        private static final byte NBT_COMPOUND = 0x0A;
+        private static final byte ZLIB_HEADER = 0x78;
+
+        private final boolean deflate;
+
+        private BinaryItemStackConverter(boolean deflate) {
+            this.deflate = deflate;
+        }
+
+        @Override
+        public Object toSqlType(ItemStack obj) {
+            byte[] nbt;
+            try {
+                nbt = ItemStackUtils.itemToBinary(obj);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            return deflate ? deflate(nbt) : nbt;
+        }
+
+        @Override
+        public ItemStack toJavaType(Object obj) {
+            if (obj instanceof String) {
+                return ItemStackUtils.itemFromBase64((String) obj);
+            } else if (obj instanceof byte[]) {
+                byte[] data = (byte[]) obj;
+                try {
+                    if (data.length > 0 && data[0] == NBT_COMPOUND) {
+                        return ItemStackUtils.itemFromBinary(data);
+                    } else if (data.length > 0 && data[0] == ZLIB_HEADER) {
+                        return inflateItem(data);
+                    } else {
+                        return ItemStackUtils.itemFromBase64(new String(data, StandardCharsets.US_ASCII));
+                    }
+                } catch (IOException | ReflectiveOperationException ex) {
+                    throw new RuntimeException(ex);
+                }
+            } else {
+                throw new IllegalArgumentException("Expecting byte[] but received " + obj.toString());
+            }
+        }
+
+        private static byte[] deflate(byte[] data) {
+            Deflater deflater = new Deflater();
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2 + 16);
+                byte[] buf = new byte[4096];
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buf);
+                    bos.write(buf, 0, n);
+                }
+                return bos.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private static ItemStack inflateItem(byte[] data) throws IOException, ReflectiveOperationException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data);
+                byte[] buf = new byte[Math.max(256, data.length * 4)];
+                int len = 0;
+                while (!inflater.finished()) {
+                    if (len == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+                    int n = inflater.inflate(buf, len, buf.length - len);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        throw new IOException("Truncated deflated item");
+                    len += n;
+                }
+                // parse in place, no copy of the inflated bytes
+                return ItemStackUtils.itemFromBinary(buf, 0, len);
+            } catch (DataFormatException ex) {
+                throw new IOException(ex);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        @Override
+        public Types getSqlType() {
+            return LONGBLOB;
+        }
+    }
+
     public static class StaticParsingTypeConverter<T> implements IDataTypeConverter<T> {
         private final Class<T> cls;
         private final Method parseMethod;
@@ -277,7 +398,23 @@ public class DataTypeMapping {
         if (cls.isEnum()) return new EnumConverter(cls);
         if (cls == ItemStack.class) return ItemStackConverter.INSTANCE;
         if (isStaticParsingType(cls)) return new StaticParsingTypeConverter(cls);
-        if (cls == byte[].class) throw new NotImplementedException();
+        if (cls == byte[].class) return ByteArrayConverter.INSTANCE;
         throw new IllegalArgumentException("Not an acceptable type: " + cls);
     }
+
+    /**
+     * Get the converter for a column, taking the storage annotations on it into account
+     *
+     * @param cls    java type of the column
+     * @param column the field or getter declaring the column
+     */
+    @SuppressWarnings("rawtypes")
+    public static IDataTypeConverter getDataTypeConverter(Class cls, AnnotatedElement column) {
+        Binary binary = column.getAnnotation(Binary.class);
+        if (binary != null) {
+            if (cls != ItemStack.class) throw new IllegalArgumentException("@Binary is only supported on ItemStack columns: " + column);
+            return binary.deflate() ? BinaryItemStackConverter.DEFLATED : BinaryItemStackConverter.RAW;
+        }
+        return getDataTypeConverter(cls);
+    }
 }
@@ -0,0 +1,137 @@
+package cat.nyaa.nyaacore.database.relational;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * SQL dialect spoken by a {@link RelationalDB},
+ * used where the generated SQL differs between backends.
+ */
+public enum Dialect {
+    /**
+     * Unknown backend, only plain SQL-92 is generated
+     */
+    GENERIC(999, false),
+    /**
+     * SQLite. 999 is SQLITE_MAX_VARIABLE_NUMBER for versions before 3.32
+     */
+    SQLITE(999, true),
+    MYSQL(65535, true);
+
+    private final int maxParameters;
+    private final boolean multiRowValues;
+
+    Dialect(int maxParameters, boolean multiRowValues) {
+        this.maxParameters = maxParameters;
+        this.multiRowValues = multiRowValues;
+    }
+
+    /**
+     * @param conn a connection
+     * @return the dialect of the database behind the connection, GENERIC if not known
+     */
+    public static Dialect of(Connection conn) throws SQLException {
+        String product = conn.getMetaData().getDatabaseProductName();
+        if ("SQLite".equalsIgnoreCase(product)) return SQLITE;
+        if ("MySQL".equalsIgnoreCase(product) || "MariaDB".equalsIgnoreCase(product)) return MYSQL;
+        return GENERIC;
+    }
+
+    /**
+     * @return max number of '?' placeholders in one statement
+     */
+    public int getMaxParameters() {
+        return maxParameters;
+    }
+
+    /**
+     * Append the row limit of a select and add its parameters.
+     *
+     * @param sql        the select being built
+     * @param parameters parameters of the select
+     * @param limit      max rows, negative for no limit
+     * @param offset     rows to skip
+     */
+    public void appendLimitClause(StringBuilder sql, List<Object> parameters, int limit, int offset) {
+        boolean hasLimit = limit >= 0, hasOffset = offset > 0;
+        if (!hasLimit && !hasOffset) return;
+        switch (this) {
+            case SQLITE:
+            case MYSQL:
+                sql.append(" LIMIT ");
+                if (hasLimit) {
+                    sql.append("?");
+                    parameters.add(limit);
+                } else {
+                    // OFFSET needs a LIMIT: SQLite takes -1, MySQL documents the largest unsigned BIGINT
+                    sql.append(this == SQLITE ? "-1" : "18446744073709551615");
+                }
+                if (hasOffset) {
+                    sql.append(" OFFSET ?");
+                    parameters.add(offset);
+                }
+                return;
+            default:
+                if (hasOffset) {
+                    sql.append(" OFFSET ? ROWS");
+                    parameters.add(offset);
+                }
+                if (hasLimit) {
+                    sql.append(" FETCH FIRST ? ROWS ONLY");
+                    parameters.add(limit);
+                }
+        }
+    }
+
+    /**
+     * Turn an INSERT into an upsert on primary key conflict
+     *
+     * @param insert        INSERT INTO ... VALUES ...
+     * @param primaryKey    the conflicting column
+     * @param updateColumns columns updated to the inserted values
+     * @return the insert builder
+     */
+    public StringBuilder appendUpsertClause(StringBuilder insert, String primaryKey, List<String> updateColumns) {
+        StringJoiner set = new StringJoiner(",");
+        switch (this) {
+            case SQLITE:
+                for (String col : updateColumns) set.add(col + "=excluded." + col);
+                return insert.append(" ON CONFLICT(").append(primaryKey).append(") DO UPDATE SET ").append(set);
+            case MYSQL:
+                for (String col : updateColumns) set.add(col + "=VALUES(" + col + ")");
+                return insert.append(" ON DUPLICATE KEY UPDATE ").append(set);
+            default:
+                throw new UnsupportedOperationException("upsert is not supported by " + this);
+        }
+    }
+
+    /**
+     * @return true if INSERT ... VALUES (...),(...) is supported
+     */
+    public boolean supportsMultiRowValues() {
+        return multiRowValues;
+    }
+
+    /**
+     * @param ex a failed statement
+     * @return true if it failed on a lock held by another transaction, so the transaction may succeed if retried
+     */
+    public boolean isContention(SQLException ex) {
+        // JDBC 4 drivers report deadlocks and lock timeouts as transient, the 40 class is "transaction rollback"
+        if (ex instanceof SQLTransientException) return true;
+        if (ex.getSQLState() != null && ex.getSQLState().startsWith("40")) return true;
+        switch (this) {
+            case SQLITE:
+                // SQLITE_BUSY and SQLITE_LOCKED, extended codes like SQLITE_BUSY_SNAPSHOT share the low byte
+                return (ex.getErrorCode() & 0xff) == 5 || (ex.getErrorCode() & 0xff) == 6;
+            case MYSQL:
+                // ER_LOCK_WAIT_TIMEOUT, ER_LOCK_DEADLOCK
+                return ex.getErrorCode() == 1205 || ex.getErrorCode() == 1213;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package cat.nyaa.nyaacore.database.relational;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU cache of the rows of one table, keyed by primary key.
+ * <p>
+ * Rows are kept as column values in their SQL form and a new table object
+ * is built on each hit, so callers never share mutable objects.
+ * Only rows read outside transactions are cached, because uncommitted rows may be rolled back.
+ *
+ * @param <T> the table type
+ */
+public class EntityCache<T> {
+    private final TableStructure<T> table;
+    private final int maxEntries;
+    private final long ttl;
+    private final LinkedHashMap<Object, CachedRow> entries;
+    private long generation = 0; // bumped by every invalidation
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public EntityCache(TableStructure<T> table, int maxEntries, long ttl) {
+        if (table.getPrimaryKey() == null) throw new IllegalArgumentException("Cached table has no primary key: " + table.getTableName());
+        if (maxEntries <= 0) throw new IllegalArgumentException("Cache size must be positive: " + maxEntries);
+        this.table = table;
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<Object, CachedRow>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, CachedRow> eldest) {
+                if (size() <= EntityCache.this.maxEntries) return false;
+                evictions.incrementAndGet();
+                return true;
+            }
+        };
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Keys are compared by their SQL value, integers of any width are the same key
+     */
+    static Object normalizeKey(Object key) {
+        if (key instanceof Integer || key instanceof Short || key instanceof Byte) return ((Number) key).longValue();
+        return key;
+    }
+
+    /**
+     * @param key primary key in SQL form
+     * @return a new table object, or null on a miss
+     */
+    public T get(Object key) throws ReflectiveOperationException {
+        Map<String, Object> values;
+        synchronized (this) {
+            Object k = normalizeKey(key);
+            CachedRow entry = entries.get(k);
+            if (entry != null && ttl > 0 && System.currentTimeMillis() - entry.loadTime > ttl) {
+                entries.remove(k);
+                entry = null;
+            }
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            values = entry.values;
+        }
+        T obj = table.newInstance();
+        for (Map.Entry<String, Object> e : values.entrySet()) {
+            table.getColumn(e.getKey()).setSqlObject(obj, e.getValue());
+        }
+        return obj;
+    }
+
+    /**
+     * Take this before reading a row from the database and pass it to {@link #put(Object, long)}
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Cache a row just read from the database.
+     * The row is dropped if anything was invalidated since the read started,
+     * as it may be older than the write that caused the invalidation.
+     *
+     * @param obj        the row
+     * @param generation {@link #getGeneration()} before the read
+     */
+    public void put(T obj, long generation) {
+        Map<String, Object> values = new HashMap<>(table.getColumnObjectMap(obj));
+        Object key = normalizeKey(values.get(table.getPrimaryKey()));
+        if (key == null) return;
+        synchronized (this) {
+            if (generation != this.generation) return;
+            entries.put(key, new CachedRow(values, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * @param key primary key in SQL form
+     */
+    public synchronized void invalidate(Object key) {
+        invalidations.incrementAndGet();
+        generation++;
+        entries.remove(normalizeKey(key));
+    }
+
+    public synchronized void invalidateAll() {
+        invalidations.incrementAndGet();
+        generation++;
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * @return hits / (hits + misses), or 0 if nothing has been looked up yet
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: size=%d, hits=%d, misses=%d, evictions=%d, invalidations=%d, ratio=%.3f",
+                table.getTableName(), size(), getHits(), getMisses(), getEvictions(), getInvalidations(), getHitRatio());
+    }
+
+    private static class CachedRow {
+        final Map<String, Object> values;
+        final long loadTime;
+
+        CachedRow(Map<String, Object> values, long loadTime) {
+            this.values = values;
+            this.loadTime = loadTime;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package cat.nyaa.nyaacore.database.relational;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Create a single column index for a {@link javax.persistence.Column}.
+ * Composite indexes are declared with {@link javax.persistence.Table#indexes()}.
+ */
+@Target({ElementType.FIELD, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Indexed {
+    /**
+     * @return index name, generated from the table and column name if empty
+     */
+    String name() default "";
+
+    boolean unique() default false;
+}
@@ -1,7 +1,10 @@
 package cat.nyaa.nyaacore.database.relational;
 
 import java.sql.Connection;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 /**
  * A simple interface to build the SQL string.
@@ -9,26 +12,75 @@ import java.util.List;
  * @param <T> the table class
  */
 public interface Query<T> extends AutoCloseable {
+    enum Order {
+        ASC,
+        DESC
+    }
+
     Query<T> reset();
 
     Query<T> whereEq(String columnName, Object obj);
 
     Query<T> where(String columnName, String comparator, Object obj);
 
+    Query<T> whereIn(String columnName, Collection<?> values);
+
+    Query<T> between(String columnName, Object low, Object high);
+
+    Query<T> orderBy(String columnName, Order order);
+
+    Query<T> limit(int n);
+
+    Query<T> offset(int n);
+
+    Query<T> after(T lastRow);
+
     void delete();
 
     void insert(T object);
 
     List<T> select();
 
+    List<T> select(String... columns);
+
+    Stream<T> selectStream();
+
+    Query<T> fetchSize(int rows);
+
     T selectUnique();
 
     T selectUniqueUnchecked();
 
     int count();
 
+    double sum(String column);
+
+    long sumLong(String column);
+
+    double avg(String column);
+
+    <R> R min(String column);
+
+    <R> R max(String column);
+
+    <K> GroupBy<K> groupBy(String column);
+
     void update(T obj, String... columns);
 
+    Query<T> batchSize(int rows);
+
+    void insertAll(Collection<T> objects);
+
+    void updateAll(Collection<T> objects, String... columns);
+
+    void deleteByKeys(Collection<?> keys);
+
+    void upsert(T object, String... updateColumns);
+
+    void upsertAll(Collection<T> objects, String... updateColumns);
+
+    CompiledQuery<T> compile();
+
     void commit();
 
     void rollback();
@@ -37,4 +89,23 @@ public interface Query<T> extends AutoCloseable {
 
     @Override
     void close();
+
+    /**
+     * Aggregates per distinct value of a column, see {@link #groupBy(String)}
+     *
+     * @param <K> Java type of the grouping column
+     */
+    interface GroupBy<K> {
+        Map<K, Integer> count();
+
+        Map<K, Double> sum(String column);
+
+        Map<K, Long> sumLong(String column);
+
+        Map<K, Double> avg(String column);
+
+        <R> Map<K, R> min(String column);
+
+        <R> Map<K, R> max(String column);
+    }
 }
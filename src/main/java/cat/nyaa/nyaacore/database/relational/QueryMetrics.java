@@ -0,0 +1,295 @@
+package cat.nyaa.nyaacore.database.relational;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Latency, row and error statistics of the statements run on one database, per table and operation.
+ * <p>
+ * Statements slower than the threshold are logged with their SQL, which only holds placeholders.
+ * Metrics are off unless enabled with {@link BaseDatabase#setMetrics(QueryMetrics)},
+ * disabled databases only pay a null check per statement.
+ * Enabled metrics are listed in {@link #getRegistered()}, e.g. for the /nyaacore dbstats command.
+ */
+public class QueryMetrics {
+    /* upper bounds of the latency buckets, in microseconds; the last bucket has no bound */
+    private static final long[] BUCKET_BOUNDS = {100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000};
+    private static final int MAX_SLOW_QUERIES = 20;
+    private static final Pattern PLACEHOLDER_LIST = Pattern.compile("\\?(,\\?){3,}");
+
+    private static final Map<String, QueryMetrics> registry = new ConcurrentSkipListMap<>();
+
+    private final String name;
+    private volatile String registeredName; // null if not registered
+    private final Logger logger;
+    private volatile long slowQueryThreshold; // nanos, 0 to log nothing
+    private final Map<String, Map<String, OperationStats>> tables = new ConcurrentHashMap<>();
+    private final Deque<SlowQuery> slowQueries = new ArrayDeque<>();
+
+    /**
+     * @param name               name in {@link #getRegistered()}, usually the plugin name
+     * @param logger             logger of the slow query log
+     * @param slowQueryThreshold milliseconds, 0 to disable the slow query log
+     */
+    public QueryMetrics(String name, Logger logger, long slowQueryThreshold) {
+        this.name = name;
+        this.logger = logger;
+        setSlowQueryThreshold(slowQueryThreshold);
+    }
+
+    /**
+     * @return enabled metrics by name, sorted
+     */
+    public static Collection<QueryMetrics> getRegistered() {
+        return Collections.unmodifiableCollection(registry.values());
+    }
+
+    /**
+     * @param pluginName plugin name
+     * @return the first enabled metrics of a database of the plugin, null if none
+     */
+    public static QueryMetrics forPlugin(String pluginName) {
+        for (Map.Entry<String, QueryMetrics> e : registry.entrySet()) {
+            if (e.getKey().equals(pluginName) || e.getKey().startsWith(pluginName + "#")) return e.getValue();
+        }
+        return null;
+    }
+
+    /**
+     * Make the metrics visible in {@link #getRegistered()}.
+     * The name gets a #n suffix if taken.
+     */
+    synchronized void register() {
+        if (registeredName != null) return;
+        String key = name;
+        for (int i = 2; registry.putIfAbsent(key, this) != null; i++) key = name + "#" + i;
+        registeredName = key;
+    }
+
+    synchronized void unregister() {
+        if (registeredName == null) return;
+        registry.remove(registeredName, this);
+        registeredName = null;
+    }
+
+    /**
+     * @return the registered name, with its #n suffix if any
+     */
+    public String getName() {
+        String registered = registeredName;
+        return registered == null ? name : registered;
+    }
+
+    public long getSlowQueryThreshold() {
+        return TimeUnit.NANOSECONDS.toMillis(slowQueryThreshold);
+    }
+
+    public void setSlowQueryThreshold(long millis) {
+        if (millis < 0) throw new IllegalArgumentException("Slow query threshold must not be negative: " + millis);
+        this.slowQueryThreshold = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Record one statement
+     *
+     * @param table     table name
+     * @param operation operation, e.g. SELECT, INSERT_BATCH
+     * @param sql       SQL with placeholders, never with bound values
+     * @param nanos     elapsed time
+     * @param rows      rows returned or affected
+     * @param failed    if the statement threw
+     */
+    public void record(String table, String operation, String sql, long nanos, long rows, boolean failed) {
+        getStats(table, operation).record(nanos, rows, failed);
+        long threshold = slowQueryThreshold;
+        if (threshold > 0 && nanos >= threshold) {
+            SlowQuery slow = new SlowQuery(table, operation, getSqlShape(sql), nanos, rows, System.currentTimeMillis());
+            synchronized (slowQueries) {
+                if (slowQueries.size() >= MAX_SLOW_QUERIES) slowQueries.removeFirst();
+                slowQueries.addLast(slow);
+            }
+            logger.warning(String.format("Slow query (%.1fms, %d rows) on %s: %s", nanos / 1e6, rows, table, slow.sql));
+        }
+    }
+
+    /**
+     * @return the first keyword of the SQL in upper case, e.g. SELECT
+     */
+    public static String getOperation(String sql) {
+        int start = 0;
+        while (start < sql.length() && Character.isWhitespace(sql.charAt(start))) start++;
+        int end = start;
+        while (end < sql.length() && Character.isLetter(sql.charAt(end))) end++;
+        return end == start ? "OTHER" : sql.substring(start, end).toUpperCase();
+    }
+
+    /**
+     * Collapse long placeholder lists, so IN lists and multi-row VALUES of any length read the same
+     */
+    static String getSqlShape(String sql) {
+        return PLACEHOLDER_LIST.matcher(sql).replaceAll("?,...");
+    }
+
+    private OperationStats getStats(String table, String operation) {
+        return tables.computeIfAbsent(table, t -> new ConcurrentHashMap<>())
+                .computeIfAbsent(operation, o -> new OperationStats());
+    }
+
+    /**
+     * @return statistics of every table and operation seen, slowest total time first
+     */
+    public List<Snapshot> getSnapshots() {
+        List<Snapshot> snapshots = new ArrayList<>();
+        for (Map.Entry<String, Map<String, OperationStats>> table : tables.entrySet()) {
+            for (Map.Entry<String, OperationStats> op : table.getValue().entrySet()) {
+                snapshots.add(op.getValue().snapshot(table.getKey(), op.getKey()));
+            }
+        }
+        snapshots.sort((a, b) -> Long.compare(b.totalNanos, a.totalNanos));
+        return snapshots;
+    }
+
+    /**
+     * @return the latest slow queries, oldest first
+     */
+    public List<SlowQuery> getSlowQueries() {
+        synchronized (slowQueries) {
+            return new ArrayList<>(slowQueries);
+        }
+    }
+
+    public void reset() {
+        tables.clear();
+        synchronized (slowQueries) {
+            slowQueries.clear();
+        }
+    }
+
+    private static class OperationStats {
+        final LongAdder count = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder rows = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+        final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS.length + 1];
+
+        OperationStats() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        void record(long nanos, long rows, boolean failed) {
+            count.increment();
+            if (failed) errors.increment();
+            if (rows > 0) this.rows.add(rows);
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+            long micros = nanos / 1000;
+            int i = 0;
+            while (i < BUCKET_BOUNDS.length && micros >= BUCKET_BOUNDS[i]) i++;
+            buckets[i].increment();
+        }
+
+        Snapshot snapshot(String table, String operation) {
+            long[] histogram = new long[buckets.length];
+            for (int i = 0; i < buckets.length; i++) histogram[i] = buckets[i].sum();
+            return new Snapshot(table, operation, count.sum(), errors.sum(), rows.sum(), totalNanos.sum(), maxNanos.get(), histogram);
+        }
+    }
+
+    /**
+     * Statistics of one operation on one table
+     */
+    public static class Snapshot {
+        public final String table;
+        public final String operation;
+        public final long count;
+        public final long errors;
+        public final long rows;
+        public final long totalNanos;
+        public final long maxNanos;
+        /* statements per latency bucket, see getBucketBounds() */
+        public final long[] histogram;
+
+        Snapshot(String table, String operation, long count, long errors, long rows, long totalNanos, long maxNanos, long[] histogram) {
+            this.table = table;
+            this.operation = operation;
+            this.count = count;
+            this.errors = errors;
+            this.rows = rows;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.histogram = histogram;
+        }
+
+        /**
+         * @return upper bounds of the histogram buckets in microseconds, the last bucket is unbounded
+         */
+        public static long[] getBucketBounds() {
+            return BUCKET_BOUNDS.clone();
+        }
+
+        public double getAverageMillis() {
+            return count == 0 ? 0 : totalNanos / 1e6 / count;
+        }
+
+        /**
+         * @param p percentile, between 0 and 1
+         * @return upper bound of the bucket holding the percentile in milliseconds, max latency for the last bucket
+         */
+        public double getPercentileMillis(double p) {
+            long rank = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= rank && seen > 0) {
+                    return i < BUCKET_BOUNDS.length ? Math.min(BUCKET_BOUNDS[i] / 1e3, maxNanos / 1e6) : maxNanos / 1e6;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s: count=%d, errors=%d, rows=%d, avg=%.2fms, p95<=%.2fms, p99<=%.2fms, max=%.2fms",
+                    table, operation, count, errors, rows, getAverageMillis(), getPercentileMillis(0.95), getPercentileMillis(0.99), maxNanos / 1e6);
+        }
+    }
+
+    /**
+     * One statement over the slow query threshold
+     */
+    public static class SlowQuery {
+        public final String table;
+        public final String operation;
+        public final String sql;
+        public final long nanos;
+        public final long rows;
+        public final long time;
+
+        SlowQuery(String table, String operation, String sql, long nanos, long rows, long time) {
+            this.table = table;
+            this.operation = operation;
+            this.sql = sql;
+            this.nanos = nanos;
+            this.rows = rows;
+            this.time = time;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1fms %d rows %s: %s", nanos / 1e6, rows, table, sql);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import org.apache.commons.lang.NotImplementedException;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.function.Function;
 
 /**
  * Every relational database has a default connection
@@ -41,7 +42,8 @@ public interface RelationalDB extends Cloneable, AutoCloseable {
     <T> Query<T> query(Class<T> tableClass);
 
     /**
-     * Create a transactional query, possibly on a new connection
+     * Create a transactional query, possibly on a new connection.
+     * Commit, roll back or close it on the thread that wrote in it.
      *
      * @param tableClass the table class type
      * @param <T>        the table to be worked on
@@ -49,6 +51,42 @@ public interface RelationalDB extends Cloneable, AutoCloseable {
      */
     <T> Query<T> queryTransactional(Class<T> tableClass);
 
+    /**
+     * Run a unit of work in one transaction on one connection, committed once when the work returns
+     * and rolled back if it throws. If a statement fails on a lock held by another transaction
+     * (busy database, deadlock, lock wait timeout), the transaction is rolled back and the work
+     * is run again after a random, growing delay, so it must not have effects outside the database.
+     *
+     * @param work the unit of work, its queries are created by {@link TransactionContext#query(Class)}
+     * @param <R>  the result of the work
+     * @return the result of the work
+     */
+    default <R> R inTransaction(Function<TransactionContext, R> work) {
+        throw new NotImplementedException();
+    }
+
+    /**
+     * Create a query whose operations run on the database executor
+     * and return {@link java.util.concurrent.CompletableFuture}s
+     *
+     * @param tableClass the table class type
+     * @param <T>        the table to be worked on
+     * @return the query
+     */
+    default <T> AsyncQuery<T> queryAsync(Class<T> tableClass) {
+        throw new NotImplementedException();
+    }
+
+    /**
+     * Get the buffer that writes inserts and updates in the background,
+     * many rows per transaction. Buffered rows are flushed when the database is closed.
+     *
+     * @return the write-behind buffer of this database
+     */
+    default WriteBehindBuffer writeBehind() {
+        throw new NotImplementedException();
+    }
+
     /**
      * forcefully create a table in the database
      */
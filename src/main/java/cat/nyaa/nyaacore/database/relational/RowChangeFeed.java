@@ -0,0 +1,273 @@
+package cat.nyaa.nyaacore.database.relational;
+
+import org.bukkit.plugin.Plugin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+
+/**
+ * Rows written by {@link SynchronizedQuery}, for plugins caching rows of a table written by another plugin.
+ * <p>
+ * Inserts, updates, upserts and deletes publish one change per row with its primary key,
+ * or one change with a null key if the rows are not known, e.g. a delete by a non-key where clause.
+ * Writes in a transaction are published when it commits, and not at all if it rolls back.
+ * Only writes of a table class with subscribers are published, through any database of the server.
+ * <p>
+ * Changes are delivered on a background thread in batches, collected for {@link #getBatchDelay()} milliseconds
+ * after the first one, so a listener must be thread safe and hand work for the server thread to the scheduler.
+ * If listeners fall behind and the queue fills up, the dropped changes of a table are replaced by one with a null key.
+ * Writes by other processes or by plain SQL are not seen.
+ * The thread stops when the last subscription is closed.
+ */
+public final class RowChangeFeed {
+    public enum Operation {
+        INSERT,
+        UPDATE,
+        UPSERT,
+        DELETE
+    }
+
+    private static final int QUEUE_SIZE = 65536;
+    private static final int MAX_BATCH = 4096;
+
+    private static final Map<Class<?>, List<Subscription>> subscriptions = new ConcurrentHashMap<>();
+    private static final LinkedBlockingQueue<RowChange> queue = new LinkedBlockingQueue<>(QUEUE_SIZE);
+    private static final Map<Class<?>, RowChange> overflowed = new ConcurrentHashMap<>(); // first dropped change per table
+    private static volatile long batchDelay = 50;
+    private static volatile Thread dispatcher;
+
+    private static final AtomicLong published = new AtomicLong();
+    private static final AtomicLong delivered = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+
+    private RowChangeFeed() {
+    }
+
+    /**
+     * Receive the changes of a table in batches, until the subscription is closed or the plugin is disabled.
+     *
+     * @param plugin     the subscriber, its logger reports listener exceptions
+     * @param tableClass the table class, as used by the writing plugin
+     * @param listener   receives the changes of the table in the order they were published
+     * @return the subscription
+     */
+    public static Subscription subscribe(Plugin plugin, Class<?> tableClass, Consumer<List<RowChange>> listener) {
+        TableStructure.fromClass(tableClass); // reject classes that are not tables
+        Subscription subscription = new Subscription(plugin, tableClass, listener);
+        subscriptions.compute(tableClass, (k, list) -> {
+            if (list == null) list = new CopyOnWriteArrayList<>();
+            list.add(subscription);
+            return list;
+        });
+        startDispatcher();
+        return subscription;
+    }
+
+    /**
+     * Close all subscriptions of a plugin, called by NyaaCore when a plugin is disabled
+     */
+    public static void unsubscribeAll(Plugin plugin) {
+        for (Class<?> tableClass : subscriptions.keySet()) {
+            unsubscribe(tableClass, s -> s.plugin == plugin);
+        }
+    }
+
+    /**
+     * @return table classes with subscribers
+     */
+    public static Set<Class<?>> getSubscribedTables() {
+        return Collections.unmodifiableSet(subscriptions.keySet());
+    }
+
+    public static boolean hasSubscribers(Class<?> tableClass) {
+        List<Subscription> list = subscriptions.get(tableClass);
+        return list != null && !list.isEmpty();
+    }
+
+    public static long getBatchDelay() {
+        return batchDelay;
+    }
+
+    /**
+     * @param delay milliseconds changes are collected before delivery, 0 to deliver what is queued at once
+     */
+    public static void setBatchDelay(long delay) {
+        if (delay < 0) throw new IllegalArgumentException("Batch delay must not be negative: " + delay);
+        batchDelay = delay;
+    }
+
+    /**
+     * @return changes queued for delivery
+     */
+    public static long getPublished() {
+        return published.get();
+    }
+
+    /**
+     * @return changes handed to listeners, counted once per listener
+     */
+    public static long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return changes dropped on a full queue
+     */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Queue changes of rows of a table
+     *
+     * @param table     the table
+     * @param operation the write
+     * @param keys      primary keys in SQL form, null if not known
+     */
+    static void publish(TableStructure<?> table, Operation operation, Collection<Object> keys) {
+        publish(changesOf(table, operation, keys));
+    }
+
+    static void publish(List<RowChange> changes) {
+        for (RowChange change : changes) {
+            if (queue.offer(change)) {
+                published.incrementAndGet();
+            } else {
+                dropped.incrementAndGet();
+                overflowed.putIfAbsent(change.tableClass, change);
+            }
+        }
+    }
+
+    static List<RowChange> changesOf(TableStructure<?> table, Operation operation, Collection<Object> keys) {
+        if (keys == null || table.primaryKey == null) {
+            return Collections.singletonList(new RowChange(table.tableClass, table.tableName, operation, null));
+        }
+        DataTypeMapping.IDataTypeConverter<?> converter = table.getColumn(table.primaryKey).typeConverter;
+        List<RowChange> changes = new ArrayList<>(keys.size());
+        for (Object key : keys) {
+            changes.add(new RowChange(table.tableClass, table.tableName, operation, key == null ? null : converter.toJavaType(key)));
+        }
+        return changes;
+    }
+
+    /* removes the list of a table once empty, so the class of a disabled plugin is not kept */
+    private static void unsubscribe(Class<?> tableClass, Predicate<Subscription> filter) {
+        subscriptions.computeIfPresent(tableClass, (k, list) -> {
+            list.removeIf(filter);
+            return list.isEmpty() ? null : list;
+        });
+        if (subscriptions.isEmpty()) stopDispatcher();
+    }
+
+    private static synchronized void startDispatcher() {
+        if (dispatcher != null) return;
+        dispatcher = new Thread(RowChangeFeed::run, "NyaaCore-RowChangeFeed");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    private static synchronized void stopDispatcher() {
+        // a subscription may have been added since the caller looked
+        if (dispatcher == null || !subscriptions.isEmpty()) return;
+        dispatcher.interrupt();
+        dispatcher = null;
+    }
+
+    private static void run() {
+        while (Thread.currentThread() == dispatcher) {
+            List<RowChange> batch = new ArrayList<>();
+            try {
+                batch.add(queue.take());
+                if (batchDelay > 0) Thread.sleep(batchDelay);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            for (Class<?> tableClass : overflowed.keySet()) {
+                RowChange first = overflowed.remove(tableClass);
+                if (first != null) batch.add(new RowChange(first.tableClass, first.table, first.operation, null));
+            }
+            deliver(batch);
+        }
+    }
+
+    private static void deliver(List<RowChange> batch) {
+        Map<Class<?>, List<RowChange>> byTable = new LinkedHashMap<>();
+        for (RowChange change : batch) {
+            byTable.computeIfAbsent(change.tableClass, k -> new ArrayList<>()).add(change);
+        }
+        for (Map.Entry<Class<?>, List<RowChange>> entry : byTable.entrySet()) {
+            List<Subscription> list = subscriptions.get(entry.getKey());
+            if (list == null) continue;
+            List<RowChange> changes = Collections.unmodifiableList(entry.getValue());
+            for (Subscription subscription : list) {
+                if (!subscription.plugin.isEnabled()) {
+                    unsubscribe(entry.getKey(), s -> s == subscription);
+                    continue;
+                }
+                try {
+                    subscription.listener.accept(changes);
+                    delivered.addAndGet(changes.size());
+                } catch (Throwable ex) {
+                    subscription.plugin.getLogger().log(Level.WARNING, "Row change listener of " + entry.getKey().getName() + " failed", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Changed rows of a table
+     */
+    public static final class RowChange {
+        public final Class<?> tableClass;
+        public final String table;
+        public final Operation operation;
+        public final Object key; // primary key in Java type, null if any row of the table may have changed
+
+        RowChange(Class<?> tableClass, String table, Operation operation, Object key) {
+            this.tableClass = tableClass;
+            this.table = table;
+            this.operation = operation;
+            this.key = key;
+        }
+
+        @Override
+        public String toString() {
+            return operation + " " + table + (key == null ? " *" : " " + key);
+        }
+    }
+
+    public static final class Subscription implements AutoCloseable {
+        private final Plugin plugin;
+        private final Class<?> tableClass;
+        private final Consumer<List<RowChange>> listener;
+
+        private Subscription(Plugin plugin, Class<?> tableClass, Consumer<List<RowChange>> listener) {
+            this.plugin = plugin;
+            this.tableClass = tableClass;
+            this.listener = listener;
+        }
+
+        public Class<?> getTableClass() {
+            return tableClass;
+        }
+
+        @Override
+        public void close() {
+            unsubscribe(tableClass, s -> s == this);
+        }
+    }
+}
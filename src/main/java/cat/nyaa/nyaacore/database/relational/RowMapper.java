@@ -0,0 +1,161 @@
+package cat.nyaa.nyaacore.database.relational;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Builds table objects from result rows with the column indexes resolved in advance.
+ * <p>
+ * Each column gets a reader chosen once from its Java and SQL type:
+ * primitive columns go through the typed accessors without boxing and reject NULL,
+ * other columns use the typed getter matching {@link ColumnStructure#sqlType}
+ * and then the type converter.
+ *
+ * @param <T> the table type
+ */
+public class RowMapper<T> {
+    private final TableStructure<T> table;
+    private final ColumnStructure[] columns;
+    private final int[] indexes;
+    private final ColumnReader[] readers;
+
+    private RowMapper(TableStructure<T> table, List<String> columnNames, int[] indexes) {
+        this.table = table;
+        this.columns = new ColumnStructure[columnNames.size()];
+        this.readers = new ColumnReader[columnNames.size()];
+        this.indexes = indexes;
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = table.getColumn(columnNames.get(i));
+            readers[i] = readerOf(columns[i]);
+        }
+    }
+
+    private RowMapper(RowMapper<T> other, int[] indexes) {
+        this.table = other.table;
+        this.columns = other.columns;
+        this.readers = other.readers;
+        this.indexes = indexes;
+    }
+
+    /**
+     * Mapper for "SELECT columnNames FROM ...", the columns are read by position
+     *
+     * @param table       the table
+     * @param columnNames the selected columns, in select order
+     */
+    public static <T> RowMapper<T> forSelect(TableStructure<T> table, List<String> columnNames) {
+        int[] indexes = new int[columnNames.size()];
+        for (int i = 0; i < indexes.length; i++) indexes[i] = i + 1;
+        return new RowMapper<>(table, columnNames, indexes);
+    }
+
+    /**
+     * Mapper for a result of any shape, the columns are looked up by label in the metadata
+     *
+     * @param table       the table
+     * @param metaData    metadata of the result
+     * @param columnNames the columns to read
+     * @throws SQLException if a column is missing from the result
+     */
+    public static <T> RowMapper<T> fromMetaData(TableStructure<T> table, ResultSetMetaData metaData, List<String> columnNames) throws SQLException {
+        return table.getRowMapper(new ArrayList<>(columnNames)).withMetaData(metaData);
+    }
+
+    /**
+     * The same columns read from a result of any shape, looked up by label in the metadata
+     *
+     * @param metaData metadata of the result
+     * @throws SQLException if a column is missing from the result
+     */
+    public RowMapper<T> withMetaData(ResultSetMetaData metaData) throws SQLException {
+        Map<String, Integer> labels = new HashMap<>();
+        for (int i = metaData.getColumnCount(); i >= 1; i--) {
+            labels.put(metaData.getColumnLabel(i).toLowerCase(Locale.ROOT), i); // first occurrence wins, like findColumn
+        }
+        int[] indexes = new int[columns.length];
+        for (int i = 0; i < indexes.length; i++) {
+            Integer index = labels.get(columns[i].getName().toLowerCase(Locale.ROOT));
+            if (index == null) throw new SQLException("Column not in result: " + columns[i].getName());
+            indexes[i] = index;
+        }
+        return new RowMapper<>(this, indexes);
+    }
+
+    /**
+     * Construct ONE table object from the CURRENT result row
+     */
+    public T map(ResultSet rs) throws ReflectiveOperationException, SQLException {
+        T obj = table.newInstance();
+        for (int i = 0; i < columns.length; i++) {
+            readers[i].read(rs, indexes[i], columns[i], obj);
+        }
+        return obj;
+    }
+
+    @FunctionalInterface
+    private interface ColumnReader {
+        void read(ResultSet rs, int index, ColumnStructure column, Object obj) throws SQLException;
+    }
+
+    /**
+     * A primitive field can not hold NULL, reject it instead of reading it as 0 or false
+     */
+    private static void checkNotNull(ResultSet rs, ColumnStructure column) throws SQLException {
+        if (rs.wasNull()) {
+            throw new SQLException("NULL in primitive column " + column.getTable().getTableName() + "." + column.getName());
+        }
+    }
+
+    private static ColumnReader readerOf(ColumnStructure column) {
+        Class<?> type = column.javaType;
+        if (type == boolean.class) {
+            return (rs, i, c, obj) -> {
+                int value = rs.getInt(i);
+                checkNotNull(rs, c);
+                c.setBoolean(obj, value == 1);
+            };
+        } else if (type == double.class || type == float.class) {
+            return (rs, i, c, obj) -> {
+                double value = rs.getDouble(i);
+                checkNotNull(rs, c);
+                c.setDouble(obj, value);
+            };
+        } else if (type.isPrimitive()) {
+            return (rs, i, c, obj) -> {
+                long value = rs.getLong(i);
+                checkNotNull(rs, c);
+                c.setLong(obj, value);
+            };
+        }
+        switch (column.sqlType) {
+            case INTEGER:
+            case BIGINT:
+                return (rs, i, c, obj) -> {
+                    long value = rs.getLong(i);
+                    c.setSqlObject(obj, rs.wasNull() ? null : value);
+                };
+            case FLOAT:
+            case DOUBLE:
+                return (rs, i, c, obj) -> {
+                    double value = rs.getDouble(i);
+                    c.setSqlObject(obj, rs.wasNull() ? null : value);
+                };
+            case MEDIUMTEXT:
+                return (rs, i, c, obj) -> c.setSqlObject(obj, rs.getString(i));
+            case LONGBLOB:
+                if (column.typeConverter instanceof DataTypeMapping.ByteArrayConverter) {
+                    return (rs, i, c, obj) -> c.setSqlObject(obj, rs.getBytes(i));
+                }
+                // binary items may still hold base64 text written before the column became binary
+                return (rs, i, c, obj) -> c.setSqlObject(obj, rs.getObject(i));
+            default:
+                return (rs, i, c, obj) -> c.setSqlObject(obj, rs.getObject(i));
+        }
+    }
+}
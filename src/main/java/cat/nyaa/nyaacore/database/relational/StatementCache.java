@@ -0,0 +1,164 @@
+package cat.nyaa.nyaacore.database.relational;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU cache of prepared statements belonging to one connection.
+ * <p>
+ * Statements are keyed by their SQL text, which is the canonical shape of a query
+ * (table, operation, ordered where columns and comparators). Bound values never take part in the key.
+ * A statement is removed from the cache while borrowed, so two callers sharing
+ * the connection never bind parameters on the same statement object.
+ */
+public class StatementCache implements AutoCloseable {
+    private final Connection conn;
+    private final int maxSize;
+    private final Statistics statistics;
+    private final LinkedHashMap<String, PreparedStatement> idleStatements;
+    private boolean closed = false;
+
+    public StatementCache(Connection conn, int maxSize, Statistics statistics) {
+        if (maxSize <= 0) throw new IllegalArgumentException("Cache size must be positive: " + maxSize);
+        this.conn = conn;
+        this.maxSize = maxSize;
+        this.statistics = statistics == null ? new Statistics() : statistics;
+        this.idleStatements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= StatementCache.this.maxSize) return false;
+                StatementCache.this.statistics.evictions.incrementAndGet();
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    public Connection getConnection() {
+        return conn;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Take a statement out of the cache, or prepare a new one on a miss.
+     * The statement must be handed back with {@link #release(String, PreparedStatement)}.
+     *
+     * @param sql the SQL text
+     * @return a statement ready for binding
+     */
+    public PreparedStatement borrow(String sql) throws SQLException {
+        synchronized (this) {
+            PreparedStatement stmt = idleStatements.remove(sql);
+            if (stmt != null && !stmt.isClosed()) {
+                statistics.hits.incrementAndGet();
+                return stmt;
+            }
+        }
+        statistics.misses.incrementAndGet();
+        return conn.prepareStatement(sql);
+    }
+
+    /**
+     * Put a borrowed statement back for reuse.
+     * The statement is closed instead if the cache is closed
+     * or another statement of the same shape has been returned already.
+     *
+     * @param sql  the SQL text the statement was borrowed with
+     * @param stmt the statement
+     */
+    public void release(String sql, PreparedStatement stmt) {
+        try {
+            if (stmt.isClosed()) return;
+            stmt.clearParameters();
+        } catch (SQLException ex) {
+            closeQuietly(stmt);
+            return;
+        }
+        synchronized (this) {
+            if (!closed && !idleStatements.containsKey(sql)) {
+                idleStatements.put(sql, stmt);
+                return;
+            }
+        }
+        closeQuietly(stmt);
+    }
+
+    public synchronized int size() {
+        return idleStatements.size();
+    }
+
+    /**
+     * Close all idle statements. Borrowed statements are closed when released.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            Iterator<PreparedStatement> it = idleStatements.values().iterator();
+            while (it.hasNext()) {
+                closeQuietly(it.next());
+                it.remove();
+            }
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    /**
+     * Hit/miss counters, may be shared by all caches of one database.
+     */
+    public static class Statistics {
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        public long getMisses() {
+            return misses.get();
+        }
+
+        public long getEvictions() {
+            return evictions.get();
+        }
+
+        /**
+         * @return hits / (hits + misses), or 0 if nothing has been prepared yet
+         */
+        public double getHitRatio() {
+            long h = hits.get();
+            long total = h + misses.get();
+            return total == 0 ? 0 : (double) h / total;
+        }
+
+        public void reset() {
+            hits.set(0);
+            misses.set(0);
+            evictions.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d, misses=%d, evictions=%d, ratio=%.3f", getHits(), getMisses(), getEvictions(), getHitRatio());
+        }
+    }
+}
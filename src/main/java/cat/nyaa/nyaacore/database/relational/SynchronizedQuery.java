@@ -3,6 +3,11 @@ package cat.nyaa.nyaacore.database.relational;
 import javax.persistence.NonUniqueResultException;
 import java.sql.*;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Synchronously working on the given connection
@@ -12,258 +17,1559 @@ import java.util.*;
 public abstract class SynchronizedQuery<T> implements Query<T> {
     protected TableStructure<T> table;
     protected Connection conn;
+    protected BaseDatabase database; // null if created without one
+    protected StatementCache statementCache; // null if statements are not cached
+    protected Dialect dialect;
+    protected int batchSize;
+    protected int fetchSize;
+    protected EntityCache<T> entityCache; // null if the table is not cached
+    /* outside transactions, selects may run on a connection from BaseDatabase#borrowReadConnection() */
+    protected boolean readFromReplica = false;
+    /* transactional only: the writer lock of the database is held from the first write until commit, rollback or close */
+    protected boolean holdsWriter = false;
+    /* keys written in the current transaction, invalidated again on commit. null for all keys */
+    protected Set<Object> writtenKeys = new HashSet<>();
+    /* row changes of the current transaction, published to the RowChangeFeed on commit */
+    protected List<RowChangeFeed.RowChange> pendingChanges = new ArrayList<>();
 
-    /* NOTE: the values in the map must be SQL-type objects */
-    protected Map<String, Object> whereClause = new HashMap<>();
+    /* where clauses, combined with AND. NOTE: the parameters must be SQL-type objects */
+    protected List<Predicate> predicates = new ArrayList<>();
+    /* CompiledQuery.PARAM placeholders in the where clauses */
+    protected int parameterCount = 0;
+
+    /* select only: ordering, row limit (-1 for none) and offset */
+    protected LinkedHashMap<String, Order> orderClause = new LinkedHashMap<>();
+    protected int limit = -1;
+    protected int offset = 0;
+    /* keyset pagination: rows after this one in ordering, null for none */
+    protected T afterRow = null;
 
     public SynchronizedQuery(Class<T> tableClass, Connection conn) {
+        this(tableClass, conn, null);
+    }
+
+    /**
+     * @param database the database the connection belongs to,
+     *                 prepared statements are cached per connection if not null
+     */
+    public SynchronizedQuery(Class<T> tableClass, Connection conn, BaseDatabase database) {
         this.conn = conn;
         this.table = TableStructure.fromClass(tableClass);
+        this.database = database;
+        this.statementCache = database == null ? null : database.getStatementCache(conn);
+        this.dialect = database == null ? Dialect.GENERIC : database.getDialect();
+        this.batchSize = database == null ? 500 : database.getBatchSize();
+        this.fetchSize = database == null ? 0 : database.getFetchSize();
+        this.entityCache = database == null ? null : database.getEntityCache(tableClass);
+    }
+
+    /**
+     * reset the where clauses, ordering, limit, offset and keyset position
+     *
+     * @return self
+     */
+    @Override
+    public SynchronizedQuery<T> reset() {
+        predicates.clear();
+        parameterCount = 0;
+        orderClause.clear();
+        limit = -1;
+        offset = 0;
+        afterRow = null;
+        return this;
+    }
+
+    /**
+     * Sort the selected rows by a column, may be called multiple times.
+     * Only affects select operations.
+     *
+     * @param columnName column name
+     * @param order      direction
+     * @return self
+     */
+    @Override
+    public SynchronizedQuery<T> orderBy(String columnName, Order order) {
+        if (!table.hasColumn(columnName)) throw new IllegalArgumentException("Unknown DataColumn Name: " + columnName);
+        orderClause.put(columnName, Objects.requireNonNull(order));
+        return this;
+    }
+
+    /**
+     * Select at most n rows. Only affects select operations.
+     *
+     * @param n max rows, negative for no limit
+     * @return self
+     */
+    @Override
+    public SynchronizedQuery<T> limit(int n) {
+        limit = n < 0 ? -1 : n;
+        return this;
+    }
+
+    /**
+     * Skip the first n selected rows. Only affects select operations.
+     * Prefer {@link #after(Object)} for deep pages.
+     *
+     * @param n rows to skip
+     * @return self
+     */
+    @Override
+    public SynchronizedQuery<T> offset(int n) {
+        if (n < 0) throw new IllegalArgumentException("Offset must not be negative: " + n);
+        offset = n;
+        return this;
+    }
+
+    /**
+     * Keyset pagination: only match rows that come after the given row in the ordering
+     * set by {@link #orderBy(String, Order)}. The primary key is appended to the ordering
+     * as a tie breaker, and is the ordering if none is set.
+     * Unlike offset, this lets the database seek with an index instead of skipping rows.
+     * Ordering columns must not contain NULL.
+     *
+     * @param lastRow the last row of the previous page, null to start from the beginning
+     * @return self
+     */
+    @Override
+    public SynchronizedQuery<T> after(T lastRow) {
+        if (lastRow != null && orderClause.isEmpty() && table.primaryKey == null) {
+            throw new IllegalStateException("Keyset pagination needs an ordering or a primary key: " + table.tableName);
+        }
+        afterRow = lastRow;
+        return this;
+    }
+
+    /**
+     * @return the ordering used by the select operations,
+     * including the primary key tie breaker of keyset pagination
+     */
+    private Map<String, Order> getEffectiveOrder() {
+        if (afterRow == null || table.primaryKey == null || orderClause.containsKey(table.primaryKey)) return orderClause;
+        Map<String, Order> order = new LinkedHashMap<>(orderClause);
+        order.put(table.primaryKey, Order.ASC);
+        return order;
+    }
+
+    /**
+     * SELECT columns FROM table WHERE ... ORDER BY ... LIMIT ...
+     *
+     * @param select "SELECT columns FROM table"
+     */
+    private String buildSelectSql(String select, List<Object> objects) {
+        StringBuilder sql = new StringBuilder(buildWhereClause(select, objects));
+        Map<String, Order> order = getEffectiveOrder();
+        if (!order.isEmpty()) {
+            sql.append(" ORDER BY ");
+            boolean first = true;
+            for (Map.Entry<String, Order> e : order.entrySet()) {
+                if (!first) sql.append(",");
+                first = false;
+                sql.append(e.getKey()).append(" ").append(e.getValue().name());
+            }
+        }
+        dialect.appendLimitClause(sql, objects, limit, offset);
+        return sql.toString();
+    }
+
+    @Override
+    public SynchronizedQuery<T> whereEq(String columnName, Object obj) {
+        return where(columnName, "=", obj);
+    }
+
+    /**
+     * comparator can be any SQL comparator.
+     * e.g. =, &gt;, &lt;
+     * Each call adds a clause, so a column may be constrained more than once,
+     * e.g. where("time", "&gt;", from).where("time", "&lt;", to).
+     * {@link CompiledQuery#PARAM} leaves the value to the executions of {@link #compile()}.
+     */
+    @Override
+    public SynchronizedQuery<T> where(String columnName, String comparator, Object obj) {
+        if (!table.hasColumn(columnName)) throw new IllegalArgumentException("Unknown DataColumn Name");
+        obj = toSqlParameter(table.getColumn(columnName), obj);
+        predicates.add(new Predicate(columnName + comparator + "?", Collections.singletonList(obj)));
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object toSqlParameter(ColumnStructure column, Object obj) {
+        if (obj == CompiledQuery.PARAM) return new CompiledQuery.Slot(parameterCount++, column);
+        return column.typeConverter.toSqlType(obj);
+    }
+
+    /**
+     * column IN (values). An empty collection matches nothing.
+     * Lists longer than the parameter limit of the dialect are sent in chunks
+     * by select, count, update and delete; other operations reject them.
+     *
+     * @param columnName column name
+     * @param values     values in Java type
+     * @return self
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public SynchronizedQuery<T> whereIn(String columnName, Collection<?> values) {
+        if (!table.hasColumn(columnName)) throw new IllegalArgumentException("Unknown DataColumn Name");
+        ColumnStructure column = table.getColumn(columnName);
+        Set<Object> sqlValues = new LinkedHashSet<>();
+        for (Object value : values) {
+            if (value == CompiledQuery.PARAM) throw new IllegalArgumentException("IN lists can not hold placeholders");
+            sqlValues.add(column.typeConverter.toSqlType(value));
+        }
+        predicates.add(sqlValues.isEmpty() ? new Predicate("1=0", Collections.emptyList())
+                : new InPredicate(columnName, new ArrayList<>(sqlValues), Integer.MAX_VALUE));
+        return this;
+    }
+
+    /**
+     * column BETWEEN low AND high, both ends included
+     *
+     * @return self
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public SynchronizedQuery<T> between(String columnName, Object low, Object high) {
+        if (!table.hasColumn(columnName)) throw new IllegalArgumentException("Unknown DataColumn Name");
+        ColumnStructure column = table.getColumn(columnName);
+        predicates.add(new Predicate(columnName + " BETWEEN ? AND ?",
+                Arrays.asList(toSqlParameter(column, low), toSqlParameter(column, high))));
+        return this;
+    }
+
+    /**
+     * remove records matching the where clauses
+     */
+    @Override
+    public void delete() {
+        Collection<Object> keys = getWrittenKeys();
+        invalidateCache(keys);
+        forEachPredicateChunk(0, true, () -> {
+            List<Object> objects = new ArrayList<>();
+            String sql = buildWhereClause("DELETE FROM " + table.getTableName(), objects);
+            execute(sql, objects, PreparedStatement::executeUpdate);
+        });
+        invalidateCache(keys);
+        publishChanges(RowChangeFeed.Operation.DELETE, this::getWhereKeys);
+    }
+
+    /**
+     * the where clauses are ignored
+     *
+     * @param object record to be inserted
+     */
+    @Override
+    public void insert(T object) {
+        Collection<Object> keys = getKeys(Collections.singletonList(object));
+        invalidateCache(keys);
+        execute(table.getInsertSql(1), Collections.emptyList(), stmt -> {
+            bindRows(stmt, Collections.singletonList(object));
+            return stmt.executeUpdate();
+        });
+        invalidateCache(keys);
+        publishChanges(RowChangeFeed.Operation.INSERT, () -> getRowKeys(Collections.singletonList(object)));
+    }
+
+    /**
+     * SELECT * FROM this_table WHERE ...
+     *
+     * @return all select rows
+     */
+    @Override
+    public List<T> select() {
+        return select(table.orderedColumnName);
+    }
+
+    /**
+     * SELECT columns FROM this_table WHERE ...
+     * Only the given columns are read and converted, other fields are left as the no-arg constructor set them.
+     *
+     * @param columns column names, all columns if empty
+     * @return all select rows
+     */
+    @Override
+    public List<T> select(String... columns) {
+        if (columns == null || columns.length == 0) return select();
+        List<String> columnList = new ArrayList<>(columns.length);
+        for (String col : columns) {
+            if (!table.hasColumn(col)) throw new IllegalArgumentException("Unknown Column Name: " + col);
+            if (!columnList.contains(col)) columnList.add(col);
+        }
+        return select(columnList);
+    }
+
+    private List<T> select(List<String> columns) {
+        String select = columns == table.orderedColumnName ? table.getSelectSql() : "SELECT " + String.join(",", columns) + " FROM " + table.tableName;
+        RowMapper<T> mapper = table.getRowMapper(columns);
+        List<T> results = new ArrayList<T>();
+        // rows of different chunks can not be ordered or paged together
+        boolean chunkable = orderClause.isEmpty() && limit < 0 && offset == 0 && afterRow == null;
+        forEachPredicateChunk(2, chunkable, () -> {
+            List<Object> objects = new ArrayList<>();
+            String sql = buildSelectSql(select, objects);
+            results.addAll(execute(sql, objects, stmt -> {
+                List<T> rows = new ArrayList<T>();
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        T obj = mapper.map(rs);
+                        rows.add(obj);
+                    }
+                }
+                return rows;
+            }));
+        });
+        return results;
+    }
+
+    /**
+     * SELECT * FROM this_table WHERE ..., mapping rows lazily while the stream is consumed.
+     * The statement is not cached and stays open until the stream is closed or exhausted,
+     * so close the stream (e.g. try-with-resources) if it may not be fully consumed.
+     * The query must stay open while the stream is in use.
+     * If the driver streams row by row, which blocks every other statement on the connection,
+     * a stream on the shared default connection runs on its own connection from {@link BaseDatabase#newConnection()}.
+     *
+     * @return stream of the selected rows
+     */
+    @Override
+    public Stream<T> selectStream() {
+        requireSingleStatement(2);
+        List<Object> objects = new ArrayList<>();
+        String sql = buildSelectSql(table.getSelectSql(), objects);
+        PreparedStatement stmt = null;
+        ResultSet rs;
+        QueryMetrics metrics = database == null ? null : database.getMetrics();
+        long start = metrics == null ? 0 : System.nanoTime();
+        Connection replica = null;
+        Connection owned = null;
+        try {
+            explain(sql, objects);
+            replica = borrowReadConnection(sql);
+            if (replica == null) lockWriter(sql); // only locks the transaction of a transactional query
+            int streamingFetchSize = database == null ? fetchSize : database.getStreamingFetchSize(fetchSize);
+            if (replica == null && streamingFetchSize == Integer.MIN_VALUE && conn == database.getConnection()) {
+                owned = database.newConnection();
+            }
+            Connection streamConn = replica != null ? replica : owned != null ? owned : conn;
+            stmt = streamConn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            bindParameters(stmt, objects);
+            if (streamingFetchSize != 0) stmt.setFetchSize(streamingFetchSize);
+            rs = stmt.executeQuery();
+        } catch (SQLException ex) {
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (SQLException e) {
+                    ex.addSuppressed(e);
+                }
+            }
+            if (replica != null) database.releaseReadConnection(replica);
+            if (owned != null) database.recycleConnection(owned);
+            if (metrics != null) metrics.record(table.tableName, "SELECT_STREAM", sql, System.nanoTime() - start, 0, true);
+            throw new RuntimeException(sql, ex);
+        }
+        ResultSetSpliterator spliterator = new ResultSetSpliterator(sql, stmt, rs, replica, owned, metrics, start);
+        return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
+    }
+
+    /**
+     * Set the JDBC fetch size used by {@link #selectStream()}
+     *
+     * @param rows rows fetched per round trip, 0 for the driver default
+     * @return self
+     */
+    @Override
+    public SynchronizedQuery<T> fetchSize(int rows) {
+        if (rows < 0) throw new IllegalArgumentException("Fetch size must not be negative: " + rows);
+        this.fetchSize = rows;
+        return this;
+    }
+
+    private class ResultSetSpliterator extends Spliterators.AbstractSpliterator<T> {
+        private final String sql;
+        private final PreparedStatement stmt;
+        private final ResultSet rs;
+        private final Connection replica; // null if on the connection of the query
+        private final Connection owned; // recycled on close, null if on the connection of the query
+        private final RowMapper<T> mapper = table.getRowMapper(table.orderedColumnName);
+        private final QueryMetrics metrics; // null if disabled
+        private final long start;
+        private long rows = 0;
+        private boolean failed = false;
+        private boolean closed = false;
+
+        ResultSetSpliterator(String sql, PreparedStatement stmt, ResultSet rs, Connection replica, Connection owned, QueryMetrics metrics, long start) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.sql = sql;
+            this.stmt = stmt;
+            this.rs = rs;
+            this.replica = replica;
+            this.owned = owned;
+            this.metrics = metrics;
+            this.start = start;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (closed) return false;
+            T obj;
+            try {
+                if (!rs.next()) {
+                    close();
+                    return false;
+                }
+                obj = mapper.map(rs);
+                rows++;
+            } catch (SQLException | ReflectiveOperationException ex) {
+                failed = true;
+                close();
+                throw new RuntimeException(sql, ex);
+            }
+            action.accept(obj);
+            return true;
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            // the time the stream was open, including the time spent by the consumer
+            if (metrics != null) metrics.record(table.tableName, "SELECT_STREAM", sql, System.nanoTime() - start, rows, failed);
+            try {
+                rs.close();
+                stmt.close();
+            } catch (SQLException ex) {
+                throw new RuntimeException(sql, ex);
+            } finally {
+                if (replica != null) database.releaseReadConnection(replica);
+                if (owned != null) database.recycleConnection(owned);
+            }
+        }
+    }
+
+    private String buildWhereClause(String sql, List<Object> objects) {
+        if (predicates.size() > 0 || afterRow != null) {
+            StringBuilder sb = new StringBuilder(sql).append(" WHERE");
+            boolean firstClause = true;
+            // sorted, so the same set of clauses always renders the same SQL
+            List<Predicate> sorted = new ArrayList<>(predicates);
+            sorted.sort(Comparator.comparing(pred -> pred.sql));
+            for (Predicate pred : sorted) {
+                if (!firstClause) sb.append(" AND");
+                firstClause = false;
+                sb.append(" ").append(pred.sql);
+                objects.addAll(pred.parameters);
+            }
+            if (afterRow != null) {
+                if (!firstClause) sb.append(" AND");
+                sb.append(" ");
+                appendKeysetClause(sb, objects);
+            }
+            return sb.toString();
+        }
+        return sql;
+    }
+
+    /**
+     * Run a statement once, or once per chunk of the longest IN list if the where clauses
+     * have more parameters than the dialect allows, with the chunk in place of the whole list.
+     *
+     * @param otherParameters parameters of the statement besides the where clauses
+     * @param chunkable       if the operation gives the same result when run per chunk
+     * @param action          builds and runs the statement with the current where clauses
+     */
+    private void forEachPredicateChunk(int otherParameters, boolean chunkable, Runnable action) {
+        int chunkSize = getInChunkSize(otherParameters);
+        if (chunkSize == 0) {
+            action.run();
+            return;
+        }
+        InPredicate longest = getLongestInPredicate();
+        if (!chunkable) throw new IllegalStateException("IN list of " + longest.values.size() + " values is too long for one statement of this operation");
+        List<Predicate> original = predicates;
+        try {
+            for (int from = 0; from < longest.values.size(); from += chunkSize) {
+                List<Predicate> chunk = new ArrayList<>(original);
+                List<Object> values = longest.values.subList(from, Math.min(from + chunkSize, longest.values.size()));
+                chunk.set(chunk.indexOf(longest), new InPredicate(longest.column, values, chunkSize));
+                predicates = chunk;
+                action.run();
+            }
+        } finally {
+            predicates = original;
+        }
+    }
+
+    private void requireSingleStatement(int otherParameters) {
+        forEachPredicateChunk(otherParameters, false, () -> {
+        });
+    }
+
+    /**
+     * @return values per chunk of the longest IN list, 0 if the where clauses fit in one statement
+     */
+    private int getInChunkSize(int otherParameters) {
+        int max = dialect.getMaxParameters() - otherParameters;
+        if (afterRow != null) {
+            int n = getEffectiveOrder().size();
+            max -= n * (n + 1) / 2;
+        }
+        int total = 0;
+        for (Predicate pred : predicates) total += pred.parameters.size();
+        if (total <= max) return 0;
+        InPredicate longest = getLongestInPredicate();
+        int chunkSize = longest == null ? 0 : max - (total - longest.parameters.size());
+        if (chunkSize <= 0) throw new IllegalStateException("Too many parameters for one statement: " + (total + otherParameters));
+        // whole steps, so all chunks but the last one share a statement
+        return chunkSize > InPredicate.STEP ? chunkSize - chunkSize % InPredicate.STEP : chunkSize;
+    }
+
+    private InPredicate getLongestInPredicate() {
+        InPredicate longest = null;
+        for (Predicate pred : predicates) {
+            if (pred instanceof InPredicate && (longest == null || pred.parameters.size() > longest.parameters.size())) {
+                longest = (InPredicate) pred;
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * (c1 &gt; ?) OR (c1 = ? AND c2 &gt; ?) OR ..., with &lt; for descending columns
+     */
+    private void appendKeysetClause(StringBuilder sb, List<Object> objects) {
+        List<Map.Entry<String, Order>> order = new ArrayList<>(getEffectiveOrder().entrySet());
+        sb.append("(");
+        for (int i = 0; i < order.size(); i++) {
+            if (i > 0) sb.append(" OR ");
+            sb.append("(");
+            for (int j = 0; j < i; j++) {
+                String col = order.get(j).getKey();
+                sb.append(col).append("=? AND ");
+                objects.add(table.getColumn(col).getSqlObject(afterRow));
+            }
+            String col = order.get(i).getKey();
+            sb.append(col).append(order.get(i).getValue() == Order.ASC ? ">?" : "<?").append(")");
+            objects.add(table.getColumn(col).getSqlObject(afterRow));
+        }
+        sb.append(")");
+    }
+
+    /**
+     * Fix the SQL of the where clauses, ordering, limit and offset of this query,
+     * leaving the {@link CompiledQuery#PARAM} values to each execution
+     *
+     * @return the compiled query, running on the connection of this query
+     */
+    @Override
+    public CompiledQuery<T> compile() {
+        if (afterRow != null) throw new IllegalStateException("Keyset pagination can not be compiled");
+        requireSingleStatement(2);
+        List<Object> selectParameters = new ArrayList<>();
+        String selectSql = buildSelectSql(table.getSelectSql(), selectParameters);
+        List<Object> whereParameters = new ArrayList<>();
+        String countSql = buildWhereClause("SELECT COUNT(*) AS C FROM " + table.tableName, whereParameters);
+        String deleteSql = buildWhereClause("DELETE FROM " + table.getTableName(), new ArrayList<>());
+        CompiledQuery.Slot keySlot = null;
+        if (predicates.size() == 1 && predicates.get(0).sql.equals(table.getPrimaryKeyWhere())
+                && predicates.get(0).parameters.get(0) instanceof CompiledQuery.Slot) {
+            keySlot = (CompiledQuery.Slot) predicates.get(0).parameters.get(0);
+        }
+        return new CompiledQuery<>(this, parameterCount, selectSql, selectParameters, countSql, deleteSql, whereParameters, keySlot);
+    }
+
+    /**
+     * Select only one record.
+     *
+     * @return the record, or throw exception if not unique
+     */
+    @Override
+    public T selectUnique() {
+        T result = selectUniqueUnchecked();
+        if (result == null) {
+            throw new NonUniqueResultException("SQL Selection has no result or not unique");
+        }
+        return result;
+    }
+
+    /**
+     * Select only one record.
+     *
+     * @return the record, or null if not unique.
+     */
+    @Override
+    public T selectUniqueUnchecked() {
+        Object key = getCacheableKey();
+        long generation = 0;
+        if (key != null) {
+            try {
+                T cached = entityCache.get(key);
+                if (cached != null) return cached;
+            } catch (ReflectiveOperationException ex) {
+                throw new RuntimeException(ex);
+            }
+            generation = entityCache.getGeneration();
+        }
+        requireSingleStatement(2);
+        List<Object> objects = new ArrayList<>();
+        String sql = buildSelectSql(table.getSelectSql(), objects);
+        // rows entering the entity cache are read from the primary, a lagging replica could hand out a stale row
+        T result = execute(sql, objects, key == null, stmt -> {
+            T row = null;
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    row = table.getRowMapper(table.orderedColumnName).map(rs);
+                    if (rs.next()) row = null;
+                }
+            }
+            return row;
+        });
+        if (key != null && result != null) entityCache.put(result, generation);
+        return result;
+    }
+
+    /**
+     * @return the primary key if the where clauses are exactly one primary key equality,
+     * the table is cached and no transaction is open (which must see its own writes), otherwise null
+     */
+    private Object getCacheableKey() {
+        if (entityCache == null || predicates.size() != 1 || afterRow != null || offset > 0 || limit == 0) return null;
+        Predicate pred = predicates.get(0);
+        if (!pred.sql.equals(table.getPrimaryKeyWhere())) return null;
+        Object key = pred.parameters.get(0);
+        return key != null && !(key instanceof CompiledQuery.Slot) && isAutoCommit() ? key : null;
+    }
+
+    /**
+     * @return keys affected by a delete or update with the where clauses, null for possibly all keys
+     */
+    private Collection<Object> getWrittenKeys() {
+        if (entityCache == null) return Collections.emptyList();
+        return getWhereKeys();
+    }
+
+    /**
+     * @return primary keys in SQL form if the where clauses are a key lookup, otherwise null
+     */
+    private Collection<Object> getWhereKeys() {
+        if (afterRow != null || predicates.size() != 1) return null;
+        Predicate pred = predicates.get(0);
+        if (pred.sql.equals(table.getPrimaryKeyWhere())) return pred.parameters;
+        if (pred instanceof InPredicate && ((InPredicate) pred).column.equals(table.primaryKey)) return ((InPredicate) pred).values;
+        return null;
+    }
+
+    private Collection<Object> getKeys(Collection<T> objects) {
+        if (entityCache == null) return Collections.emptyList();
+        return getRowKeys(objects);
+    }
+
+    private Collection<Object> getRowKeys(Collection<T> objects) {
+        if (table.primaryKey == null) return null;
+        ColumnStructure keyColumn = table.getColumn(table.primaryKey);
+        List<Object> keys = new ArrayList<>(objects.size());
+        for (T obj : objects) keys.add(keyColumn.getSqlObject(obj));
+        return keys;
+    }
+
+    /**
+     * Drop written rows from the entity cache. Called before a write, so the old row is
+     * not served while it changes, and after it, in case a concurrent read cached the old row.
+     * Inside a transaction the keys are kept and dropped again on commit.
+     *
+     * @param keys primary keys in SQL form, null to drop all rows
+     */
+    protected void invalidateCache(Collection<Object> keys) {
+        if (entityCache == null) return;
+        if (keys == null) {
+            entityCache.invalidateAll();
+        } else {
+            if (keys.isEmpty()) return;
+            keys.forEach(entityCache::invalidate);
+        }
+        if (isAutoCommit()) return;
+        if (keys == null) {
+            writtenKeys = null;
+        } else if (writtenKeys != null) {
+            writtenKeys.addAll(keys);
+        }
+    }
+
+    /**
+     * Drop the rows written in the transaction just committed or rolled back from the entity cache
+     */
+    protected void invalidateWrittenKeys() {
+        if (entityCache == null) return;
+        if (writtenKeys == null) {
+            entityCache.invalidateAll();
+        } else {
+            writtenKeys.forEach(entityCache::invalidate);
+        }
+        writtenKeys = new HashSet<>();
+    }
+
+    /**
+     * Publish written rows to the {@link RowChangeFeed} if the table has subscribers.
+     * Inside a transaction they are kept until commit.
+     *
+     * @param operation the write
+     * @param keys      primary keys in SQL form, or null if not known. Only computed if there are subscribers
+     */
+    protected void publishChanges(RowChangeFeed.Operation operation, Supplier<Collection<Object>> keys) {
+        if (!RowChangeFeed.hasSubscribers(table.tableClass)) return;
+        if (isAutoCommit()) {
+            RowChangeFeed.publish(table, operation, keys.get());
+        } else {
+            pendingChanges.addAll(RowChangeFeed.changesOf(table, operation, keys.get()));
+        }
+    }
+
+    /**
+     * Publish the changes of the transaction just committed
+     */
+    protected void publishPendingChanges() {
+        if (pendingChanges.isEmpty()) return;
+        RowChangeFeed.publish(pendingChanges);
+        pendingChanges = new ArrayList<>();
+    }
+
+    private boolean isAutoCommit() {
+        try {
+            return conn.getAutoCommit();
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * A short hand for select().size(), ignoring ordering, limit and offset.
+     *
+     * @return number of records to be selected.
+     */
+    @Override
+    public int count() {
+        int[] count = {0};
+        forEachPredicateChunk(0, true, () -> {
+            List<Object> objects = new ArrayList<>();
+            String sql = buildWhereClause("SELECT COUNT(*) AS C FROM " + table.tableName, objects);
+            count[0] += execute(sql, objects, stmt -> {
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (rs.next()) {
+                        return rs.getInt("C");
+                    } else {
+                        throw new RuntimeException("COUNT() returns empty result");
+                    }
+                }
+            });
+        });
+        return count[0];
+    }
+
+    /**
+     * SUM of a numeric column over the records matching the where clauses.
+     * Ordering, limit and offset are ignored, as in {@link #count()}.
+     *
+     * @param column numeric column
+     * @return the sum, 0 if no record matches
+     */
+    @Override
+    public double sum(String column) {
+        return aggregate("SUM", requireNumericColumn(column), rs -> rs.getDouble(1));
+    }
+
+    /**
+     * Like {@link #sum(String)}, but summed as integers without rounding
+     */
+    @Override
+    public long sumLong(String column) {
+        return aggregate("SUM", requireNumericColumn(column), rs -> rs.getLong(1));
+    }
+
+    /**
+     * @param column numeric column
+     * @return the average, NaN if no record matches
+     */
+    @Override
+    public double avg(String column) {
+        return aggregate("AVG", requireNumericColumn(column), rs -> getDoubleOrNaN(rs, 1));
+    }
+
+    /**
+     * @param column any column
+     * @return the smallest value in Java type of the column, null if no record matches
+     */
+    @Override
+    public <R> R min(String column) {
+        return aggregate("MIN", requireColumn(column), rs -> getJavaObject(rs, 1, column));
+    }
+
+    /**
+     * @param column any column
+     * @return the largest value in Java type of the column, null if no record matches
+     */
+    @Override
+    public <R> R max(String column) {
+        return aggregate("MAX", requireColumn(column), rs -> getJavaObject(rs, 1, column));
+    }
+
+    /**
+     * Aggregate the records matching the where clauses per distinct value of a column.
+     * The where clauses in effect when an aggregate of the returned object is run are used.
+     *
+     * @param column grouping column
+     * @return the aggregates, each returns a map from group value to result, in group value order
+     */
+    @Override
+    public <K> GroupBy<K> groupBy(String column) {
+        return new Grouping<>(requireColumn(column));
+    }
+
+    private <R> R aggregate(String function, String column, ResultReader<R> reader) {
+        requireSingleStatement(0);
+        List<Object> objects = new ArrayList<>();
+        String sql = buildWhereClause("SELECT " + function + "(" + column + ") FROM " + table.tableName, objects);
+        return execute(sql, objects, stmt -> {
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) throw new RuntimeException(function + "() returns empty result");
+                return reader.read(rs);
+            }
+        });
+    }
+
+    private String requireColumn(String column) {
+        if (!table.hasColumn(column)) throw new IllegalArgumentException("Unknown DataColumn Name: " + column);
+        return column;
+    }
+
+    private String requireNumericColumn(String column) {
+        switch (table.getColumn(requireColumn(column)).sqlType) {
+            case INTEGER:
+            case BIGINT:
+            case FLOAT:
+            case DOUBLE:
+                return column;
+            default:
+                throw new IllegalArgumentException("Not a numeric column: " + column);
+        }
+    }
+
+    private static double getDoubleOrNaN(ResultSet rs, int index) throws SQLException {
+        double value = rs.getDouble(index);
+        return rs.wasNull() ? Double.NaN : value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R> R getJavaObject(ResultSet rs, int index, String column) throws SQLException {
+        Object value = rs.getObject(index);
+        return value == null ? null : (R) table.getColumn(column).typeConverter.toJavaType(value);
+    }
+
+    /**
+     * One where clause with its SQL-type parameters
+     */
+    protected static class Predicate {
+        protected final String sql;
+        protected final List<Object> parameters;
+
+        protected Predicate(String sql, List<Object> parameters) {
+            this.sql = sql;
+            this.parameters = parameters;
+        }
+    }
+
+    /**
+     * column IN (?,?,...). The parameter list is padded by repeating the last value to a power of two,
+     * or to a whole number of steps for long lists, so lists of similar length share a prepared statement.
+     */
+    protected static class InPredicate extends Predicate {
+        static final int STEP = 64;
+
+        protected final String column;
+        protected final List<Object> values;
+
+        /**
+         * @param values    distinct values, in SQL type
+         * @param maxLength padding never goes beyond this length
+         */
+        protected InPredicate(String column, List<Object> values, int maxLength) {
+            super(getSql(column, getPaddedLength(values.size(), maxLength)), pad(values, getPaddedLength(values.size(), maxLength)));
+            this.column = column;
+            this.values = values;
+        }
+
+        static int getPaddedLength(int length, int maxLength) {
+            int padded = length <= STEP ? (length <= 1 ? length : Integer.highestOneBit(length - 1) << 1) : (length + STEP - 1) / STEP * STEP;
+            return Math.max(length, Math.min(padded, maxLength));
+        }
+
+        private static String getSql(String column, int length) {
+            StringBuilder sql = new StringBuilder(column).append(" IN (?");
+            for (int i = 1; i < length; i++) sql.append(",?");
+            return sql.append(")").toString();
+        }
+
+        private static List<Object> pad(List<Object> values, int length) {
+            if (values.size() == length) return values;
+            List<Object> padded = new ArrayList<>(length);
+            padded.addAll(values);
+            Object last = values.get(values.size() - 1);
+            while (padded.size() < length) padded.add(last);
+            return padded;
+        }
+    }
+
+    @FunctionalInterface
+    private interface ResultReader<R> {
+        R read(ResultSet rs) throws SQLException;
+    }
+
+    private class Grouping<K> implements GroupBy<K> {
+        private final String groupColumn;
+
+        Grouping(String groupColumn) {
+            this.groupColumn = groupColumn;
+        }
+
+        @Override
+        public Map<K, Integer> count() {
+            return aggregate("COUNT(*)", rs -> rs.getInt(2));
+        }
+
+        @Override
+        public Map<K, Double> sum(String column) {
+            return aggregate("SUM(" + requireNumericColumn(column) + ")", rs -> rs.getDouble(2));
+        }
+
+        @Override
+        public Map<K, Long> sumLong(String column) {
+            return aggregate("SUM(" + requireNumericColumn(column) + ")", rs -> rs.getLong(2));
+        }
+
+        @Override
+        public Map<K, Double> avg(String column) {
+            return aggregate("AVG(" + requireNumericColumn(column) + ")", rs -> getDoubleOrNaN(rs, 2));
+        }
+
+        @Override
+        public <R> Map<K, R> min(String column) {
+            return aggregate("MIN(" + requireColumn(column) + ")", rs -> getJavaObject(rs, 2, column));
+        }
+
+        @Override
+        public <R> Map<K, R> max(String column) {
+            return aggregate("MAX(" + requireColumn(column) + ")", rs -> getJavaObject(rs, 2, column));
+        }
+
+        private <R> Map<K, R> aggregate(String expression, ResultReader<R> reader) {
+            requireSingleStatement(0);
+            List<Object> objects = new ArrayList<>();
+            String sql = buildWhereClause("SELECT " + groupColumn + "," + expression + " FROM " + table.tableName, objects)
+                    + " GROUP BY " + groupColumn + " ORDER BY " + groupColumn;
+            return execute(sql, objects, stmt -> {
+                Map<K, R> results = new LinkedHashMap<>();
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        K key = getJavaObject(rs, 1, groupColumn);
+                        results.put(key, reader.read(rs));
+                    }
+                }
+                return results;
+            });
+        }
     }
 
     /**
-     * reset the where clauses
+     * Update record according to the where clauses
      *
-     * @return self
+     * @param obj     new values for columns
+     * @param columns columns need to be updated, update all columns if empty
      */
     @Override
-    public SynchronizedQuery<T> reset() {
-        whereClause.clear();
-        return this;
-    }
+    public void update(T obj, String... columns) {
+        List<String> updatedColumns = new ArrayList<>();
+        Map<String, Object> newValues = table.getColumnObjectMap(obj, columns);
+        if (columns == null || columns.length <= 0) {
+            updatedColumns.addAll(table.orderedColumnName);
+        } else {
+            for (String col : columns) {
+                if (!table.columns.containsKey(col)) {
+                    throw new IllegalArgumentException("Unknown Column Name: " + col);
+                }
+            }
+            updatedColumns.addAll(Arrays.asList(columns));
+        }
 
-    @Override
-    public SynchronizedQuery<T> whereEq(String columnName, Object obj) {
-        return where(columnName, "=", obj);
+        StringBuilder sql = new StringBuilder("UPDATE " + table.tableName + " SET ");
+        List<Object> setParameters = new ArrayList<>();
+        for (int i = 0; i < updatedColumns.size(); i++) {
+            if (i > 0) sql.append(",");
+            sql.append(updatedColumns.get(i)).append("=?");
+            setParameters.add(newValues.get(updatedColumns.get(i)));
+        }
+        Collection<Object> keys = getWrittenKeys();
+        invalidateCache(keys);
+        forEachPredicateChunk(setParameters.size(), true, () -> {
+            List<Object> parameters = new ArrayList<>(setParameters);
+            String updateSql = buildWhereClause(sql.toString(), parameters);
+            execute(updateSql, parameters, PreparedStatement::executeUpdate);
+        });
+        invalidateCache(keys);
+        publishChanges(RowChangeFeed.Operation.UPDATE, this::getWhereKeys);
     }
 
     /**
-     * comparator can be any SQL comparator.
-     * e.g. =, &gt;, &lt;
+     * Set the number of rows sent in one JDBC batch by the bulk operations
+     *
+     * @return self
      */
-    @SuppressWarnings("unchecked")
     @Override
-    public SynchronizedQuery<T> where(String columnName, String comparator, Object obj) {
-        if (!table.hasColumn(columnName)) throw new IllegalArgumentException("Unknown DataColumn Name");
-        obj = table.getColumn(columnName).typeConverter.toSqlType(obj);
-        whereClause.put(columnName + comparator + "?", obj);
+    public SynchronizedQuery<T> batchSize(int rows) {
+        if (rows <= 0) throw new IllegalArgumentException("Batch size must be positive: " + rows);
+        this.batchSize = rows;
         return this;
     }
 
     /**
-     * remove records matching the where clauses
+     * Insert all records in batches, in one transaction.
+     * Multi-row VALUES are used if the dialect supports them.
+     * The where clauses are ignored.
+     *
+     * @param objects records to be inserted
      */
     @Override
-    public void delete() {
-        String sql = "DELETE FROM " + table.getTableName();
-        List<Object> objects = new ArrayList<>();
-        sql = buildWhereClause(sql, objects);
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            int x = 1;
-            for (Object obj : objects) {
-                stmt.setObject(x, obj);
-                x++;
-            }
-            stmt.execute();
-        } catch (SQLException ex) {
-            throw new RuntimeException(sql, ex);
-        }
+    public void insertAll(Collection<T> objects) {
+        if (objects.isEmpty()) return;
+        List<T> rows = objects instanceof List ? (List<T>) objects : new ArrayList<>(objects);
+        Collection<Object> keys = getKeys(rows);
+        invalidateCache(keys);
+        runBatch(() -> executeRowChunks(rows, table::getInsertSql));
+        invalidateCache(keys);
+        publishChanges(RowChangeFeed.Operation.INSERT, () -> getRowKeys(rows));
     }
 
     /**
-     * the where clauses are ignored
+     * Send rows with a statement of multi-row VALUES, as many rows per statement as the dialect allows
      *
-     * @param object record to be inserted
+     * @param rows      the rows
+     * @param sqlOfRows SQL text for the given number of rows
      */
-    @Override
-    public void insert(T object) {
-        String sql = String.format("INSERT INTO %s(%s) VALUES(?", table.getTableName(), table.getColumnNamesString());
-        for (int i = 1; i < table.columns.size(); i++) sql += ",?";
-        sql += ")";
-        Map<String, Object> objMap = table.getColumnObjectMap(object);
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            for (int i = 1; i <= table.orderedColumnName.size(); i++) {
-                String colName = table.orderedColumnName.get(i - 1);
-                if (!objMap.containsKey(colName) || objMap.get(colName) == null) {
-                    stmt.setNull(i, Types.NULL);
-                } else {
-                    stmt.setObject(i, objMap.get(colName));
+    private void executeRowChunks(List<T> rows, IntFunction<String> sqlOfRows) {
+        int columnCount = table.orderedColumnName.size();
+        int rowsPerStatement = 1;
+        if (dialect.supportsMultiRowValues()) {
+            rowsPerStatement = Math.max(1, Math.min(batchSize, dialect.getMaxParameters() / columnCount));
+        }
+        final int chunkSize = rowsPerStatement;
+        int fullChunks = rows.size() / chunkSize;
+        int rest = rows.size() % chunkSize;
+        if (fullChunks > 0) {
+            Iterator<ParameterBinder> chunks = new Iterator<ParameterBinder>() {
+                int chunk = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return chunk < fullChunks;
                 }
-            }
-            stmt.execute();
-        } catch (SQLException ex) {
-            throw new RuntimeException(sql + "\n" + objMap.toString(), ex);
+
+                @Override
+                public ParameterBinder next() {
+                    List<T> chunkRows = rows.subList(chunk * chunkSize, (chunk + 1) * chunkSize);
+                    chunk++;
+                    return stmt -> bindRows(stmt, chunkRows);
+                }
+            };
+            executeBatch(sqlOfRows.apply(chunkSize), chunks, Math.max(1, batchSize / chunkSize));
+        }
+        if (rest > 0) {
+            List<T> tail = rows.subList(rows.size() - rest, rows.size());
+            executeBatch(sqlOfRows.apply(rest), Collections.<ParameterBinder>singletonList(stmt -> bindRows(stmt, tail)).iterator(), 1);
         }
     }
 
     /**
-     * SELECT * FROM this_table WHERE ...
+     * Update all records by their primary key in batches, in one transaction.
+     * The where clauses are ignored.
      *
-     * @return all select rows
+     * @param objects records to be updated
+     * @param columns columns need to be updated, update all non-key columns if empty
      */
     @Override
-    public List<T> select() {
-        String sql = "SELECT " + table.getColumnNamesString() + " FROM " + table.tableName;
-        List<Object> objects = new ArrayList<>();
-        sql = buildWhereClause(sql, objects);
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            int x = 1;
-            for (Object obj : objects) {
-                stmt.setObject(x, obj);
-                x++;
-            }
-            List<T> results = new ArrayList<T>();
-            try (ResultSet rs = stmt.executeQuery()) {
-                while (rs.next()) {
-                    T obj = table.getObjectFromResultSet(rs);
-                    results.add(obj);
+    public void updateAll(Collection<T> objects, String... columns) {
+        String primaryKey = requirePrimaryKey();
+        if (objects.isEmpty()) return;
+        List<String> updatedColumns = getUpdatedColumns(primaryKey, columns);
+        if (updatedColumns.isEmpty()) return;
+        Collection<Object> keys = getKeys(objects);
+        invalidateCache(keys);
+        runBatch(() -> executeBatch(getUpdateByKeySql(updatedColumns), updateByKeyBinders(objects, updatedColumns), batchSize));
+        invalidateCache(keys);
+        publishChanges(RowChangeFeed.Operation.UPDATE, () -> getRowKeys(objects));
+    }
+
+    /**
+     * @return the given columns, or all non-key columns if none given
+     */
+    private List<String> getUpdatedColumns(String primaryKey, String... columns) {
+        List<String> updatedColumns = new ArrayList<>();
+        if (columns == null || columns.length <= 0) {
+            for (String col : table.orderedColumnName) {
+                if (!col.equals(primaryKey)) updatedColumns.add(col);
+            }
+        } else {
+            for (String col : columns) {
+                if (!table.columns.containsKey(col)) {
+                    throw new IllegalArgumentException("Unknown Column Name: " + col);
                 }
             }
-            return results;
-        } catch (SQLException | ReflectiveOperationException ex) {
-            throw new RuntimeException(sql, ex);
+            updatedColumns.addAll(Arrays.asList(columns));
         }
+        return updatedColumns;
     }
 
-    private String buildWhereClause(String sql, List<Object> objects) {
-        if (whereClause.size() > 0) {
-            sql += " WHERE";
-            for (Map.Entry<?, ?> e : whereClause.entrySet()) {
-                if (objects.size() > 0) sql += " AND";
-                sql += " " + e.getKey();
-                objects.add(e.getValue());
-            }
+    private String getUpdateByKeySql(List<String> updatedColumns) {
+        StringBuilder sql = new StringBuilder("UPDATE " + table.tableName + " SET ");
+        for (int i = 0; i < updatedColumns.size(); i++) {
+            if (i > 0) sql.append(",");
+            sql.append(updatedColumns.get(i)).append("=?");
         }
-        return sql;
+        sql.append(" WHERE ").append(table.getPrimaryKeyWhere());
+        return sql.toString();
+    }
+
+    private Iterator<ParameterBinder> updateByKeyBinders(Collection<T> objects, List<String> updatedColumns) {
+        List<ColumnStructure> boundColumns = new ArrayList<>(updatedColumns.size() + 1);
+        for (String col : updatedColumns) {
+            boundColumns.add(table.getColumn(col));
+        }
+        boundColumns.add(table.getColumn(table.primaryKey));
+        Iterator<T> it = objects.iterator();
+        return new Iterator<ParameterBinder>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public ParameterBinder next() {
+                T obj = it.next();
+                return stmt -> {
+                    int idx = 1;
+                    for (ColumnStructure column : boundColumns) {
+                        column.bindSqlObject(stmt, idx++, obj);
+                    }
+                };
+            }
+        };
     }
 
     /**
-     * Select only one record.
+     * Insert a record, or update the given columns of the existing record with the same primary key.
+     * The where clauses are ignored.
      *
-     * @return the record, or throw exception if not unique
+     * @param object        the record
+     * @param updateColumns columns updated on conflict, all non-key columns if empty
      */
     @Override
-    public T selectUnique() {
-        T result = selectUniqueUnchecked();
-        if (result == null) {
-            throw new NonUniqueResultException("SQL Selection has no result or not unique");
-        }
-        return result;
+    public void upsert(T object, String... updateColumns) {
+        upsertAll(Collections.singletonList(object), updateColumns);
     }
 
     /**
-     * Select only one record.
+     * Upsert all records in batches, in one transaction.
+     * Rendered as ON CONFLICT DO UPDATE / ON DUPLICATE KEY UPDATE if the database supports it,
+     * otherwise rows are updated by primary key first and the rows not found are inserted.
+     * The where clauses are ignored.
      *
-     * @return the record, or null if not unique.
+     * @param objects       records
+     * @param updateColumns columns updated on conflict, all non-key columns if empty
      */
     @Override
-    public T selectUniqueUnchecked() {
-        String sql = "SELECT " + table.getColumnNamesString() + " FROM " + table.tableName;
-        List<Object> objects = new ArrayList<>();
-        sql = buildWhereClause(sql, objects);
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            int x = 1;
-            for (Object obj : objects) {
-                stmt.setObject(x, obj);
-                x++;
-            }
-            T result = null;
-            try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) {
-                    result = table.getObjectFromResultSet(rs);
-                    if (rs.next()) result = null;
+    @SuppressWarnings("unchecked")
+    public void upsertAll(Collection<T> objects, String... updateColumns) {
+        String primaryKey = requirePrimaryKey();
+        if (objects.isEmpty()) return;
+        List<String> updatedColumns = getUpdatedColumns(primaryKey, updateColumns);
+        // a table of only the key: a no-op update still reports the row as found
+        if (updatedColumns.isEmpty()) updatedColumns.add(primaryKey);
+        List<T> rows = objects instanceof List ? (List<T>) objects : new ArrayList<>(objects);
+        Collection<Object> keys = getKeys(rows);
+        invalidateCache(keys);
+        if (database != null && database.supportsUpsert()) {
+            runBatch(() -> executeRowChunks(rows, n -> dialect.appendUpsertClause(new StringBuilder(table.getInsertSql(n)), primaryKey, updatedColumns).toString()));
+        } else {
+            runBatch(() -> {
+                int[] counts = executeBatch(getUpdateByKeySql(updatedColumns), updateByKeyBinders(rows, updatedColumns), batchSize);
+                List<T> missing = new ArrayList<>();
+                for (int i = 0; i < rows.size(); i++) {
+                    if (counts[i] == 0) missing.add(rows.get(i));
                 }
-            }
-            return result;
-        } catch (SQLException | ReflectiveOperationException ex) {
-            throw new RuntimeException(sql, ex);
+                if (!missing.isEmpty()) executeRowChunks(missing, table::getInsertSql);
+            });
         }
+        invalidateCache(keys);
+        publishChanges(RowChangeFeed.Operation.UPSERT, () -> getRowKeys(rows));
     }
 
     /**
-     * A short hand for select().size();
+     * Delete records by primary key in batches, in one transaction.
+     * The where clauses are ignored.
      *
-     * @return number of records to be selected.
+     * @param keys primary key values, in Java type
      */
     @Override
-    public int count() {
-        String sql = "SELECT COUNT(*) AS C FROM " + table.tableName;
-        List<Object> objects = new ArrayList<>();
-        sql = buildWhereClause(sql, objects);
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            int x = 1;
-            for (Object obj : objects) {
-                stmt.setObject(x, obj);
-                x++;
+    @SuppressWarnings("unchecked")
+    public void deleteByKeys(Collection<?> keys) {
+        String primaryKey = requirePrimaryKey();
+        if (keys.isEmpty()) return;
+        String sql = "DELETE FROM " + table.tableName + " WHERE " + table.getPrimaryKeyWhere();
+        ColumnStructure keyColumn = table.getColumn(primaryKey);
+        List<Object> sqlKeys = new ArrayList<>(keys.size());
+        for (Object key : keys) sqlKeys.add(keyColumn.typeConverter.toSqlType(key));
+        Collection<Object> cachedKeys = entityCache == null ? Collections.emptyList() : sqlKeys;
+        invalidateCache(cachedKeys);
+        Iterator<Object> it = sqlKeys.iterator();
+        runBatch(() -> executeBatch(sql, new Iterator<ParameterBinder>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
             }
-            try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) {
-                    int count = rs.getInt("C");
-                    return count;
-                } else {
-                    throw new RuntimeException("COUNT() returns empty result");
-                }
+
+            @Override
+            public ParameterBinder next() {
+                List<Object> key = Collections.singletonList(it.next());
+                return stmt -> bindParameters(stmt, key);
+            }
+        }, batchSize));
+        invalidateCache(cachedKeys);
+        publishChanges(RowChangeFeed.Operation.DELETE, () -> sqlKeys);
+    }
+
+    private String requirePrimaryKey() {
+        if (table.primaryKey == null) {
+            throw new IllegalStateException("Table has no primary key: " + table.tableName);
+        }
+        return table.primaryKey;
+    }
+
+    /**
+     * Bind all columns of the rows in {@link TableStructure#orderedColumnName} order
+     */
+    private void bindRows(PreparedStatement stmt, List<T> rows) throws SQLException {
+        int idx = 1;
+        for (T obj : rows) {
+            for (String colName : table.orderedColumnName) {
+                table.getColumn(colName).bindSqlObject(stmt, idx++, obj);
             }
+        }
+    }
+
+    /**
+     * Run bulk statements in one transaction.
+     * If the connection is in auto-commit mode, a transaction is started and committed here;
+     * otherwise the statements join the current transaction.
+     * The default connection of the database is shared by every thread and never leaves auto-commit mode here,
+     * a batch on it runs on a connection from {@link BaseDatabase#newConnection()} instead.
+     */
+    protected void runBatch(BatchAction action) {
+        boolean autoCommit;
+        try {
+            autoCommit = conn.getAutoCommit();
         } catch (SQLException ex) {
-            throw new RuntimeException(sql, ex);
+            throw new RuntimeException(ex);
+        }
+        if (!autoCommit) {
+            try {
+                action.run();
+            } catch (SQLException ex) {
+                throw new RuntimeException(ex);
+            }
+            return;
+        }
+        if (database == null || conn != database.getConnection()) {
+            runTransaction(action);
+            return;
+        }
+        Connection shared = conn;
+        StatementCache sharedCache = statementCache;
+        conn = database.newConnection();
+        statementCache = database.getStatementCache(conn);
+        try {
+            conn.setAutoCommit(true);
+            runTransaction(action);
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            database.recycleConnection(conn);
+            conn = shared;
+            statementCache = sharedCache;
         }
     }
 
     /**
-     * Update record according to the where clauses
+     * Run bulk statements in a transaction started and committed on the connection, which is in auto-commit mode
+     */
+    private void runTransaction(BatchAction action) {
+        boolean writerLocked = false;
+        try {
+            // the statements of the batch are reentrant on the writer lock held for the whole transaction
+            writerLocked = lockWriter("BATCH");
+            conn.setAutoCommit(false);
+        } catch (SQLException ex) {
+            if (writerLocked) database.unlockWriter();
+            throw new RuntimeException(ex);
+        }
+        try {
+            action.run();
+            conn.commit();
+        } catch (SQLException | RuntimeException ex) {
+            try {
+                conn.rollback();
+            } catch (SQLException e) {
+                ex.addSuppressed(e);
+            }
+            if (ex instanceof RuntimeException) throw (RuntimeException) ex;
+            throw new RuntimeException(ex);
+        } finally {
+            try {
+                conn.setAutoCommit(true);
+            } catch (SQLException ex) {
+                throw new RuntimeException(ex);
+            } finally {
+                if (writerLocked) database.unlockWriter();
+            }
+        }
+    }
+
+    /**
+     * Bind each parameter set and add it to the batch of one statement,
+     * executing the batch every flushEvery entries.
      *
-     * @param obj     new values for columns
-     * @param columns columns need to be updated, update all columns if empty
+     * @return update counts of all parameter sets
      */
-    @Override
-    public void update(T obj, String... columns) {
-        List<String> updatedColumns = new ArrayList<>();
-        Map<String, Object> newValues = table.getColumnObjectMap(obj, columns);
-        if (columns == null || columns.length <= 0) {
-            updatedColumns.addAll(table.orderedColumnName);
-        } else {
-            for (String col : columns) {
-                if (!table.columns.containsKey(col)) {
-                    throw new IllegalArgumentException("Unknown Column Name: " + col);
+    protected int[] executeBatch(String sql, Iterator<ParameterBinder> parameterSets, int flushEvery) {
+        PreparedStatement stmt = null;
+        QueryMetrics metrics = database == null ? null : database.getMetrics();
+        long start = metrics == null ? 0 : System.nanoTime();
+        int[] counts = new int[0];
+        boolean failed = true;
+        boolean writerLocked = false;
+        try {
+            if (database != null) database.onWrite();
+            writerLocked = lockWriter(sql);
+            stmt = prepareStatement(sql);
+            int pending = 0;
+            while (parameterSets.hasNext()) {
+                parameterSets.next().bind(stmt);
+                stmt.addBatch();
+                if (++pending >= flushEvery) {
+                    counts = concat(counts, stmt.executeBatch());
+                    pending = 0;
                 }
             }
-            updatedColumns.addAll(Arrays.asList(columns));
+            if (pending > 0) counts = concat(counts, stmt.executeBatch());
+            failed = false;
+            return counts;
+        } catch (SQLException ex) {
+            if (stmt != null) {
+                try {
+                    stmt.clearBatch();
+                } catch (SQLException e) {
+                    ex.addSuppressed(e);
+                }
+            }
+            throw new RuntimeException(sql, ex);
+        } finally {
+            if (stmt != null) releaseStatement(sql, stmt);
+            if (writerLocked) database.unlockWriter();
+            if (metrics != null) {
+                long rows = 0;
+                for (int count : counts) rows += count == Statement.SUCCESS_NO_INFO ? 1 : Math.max(count, 0);
+                metrics.record(table.tableName, QueryMetrics.getOperation(sql) + "_BATCH", sql, System.nanoTime() - start, rows, failed);
+            }
         }
+    }
 
-        List<Object> parameters = new ArrayList<>();
-        String sql = "UPDATE " + table.tableName + " SET ";
-        for (int i = 0; i < updatedColumns.size(); i++) {
-            if (i > 0) sql += ",";
-            sql += updatedColumns.get(i) + "=?";
-            parameters.add(newValues.get(updatedColumns.get(i)));
+    private static int[] concat(int[] a, int[] b) {
+        if (a.length == 0) return b;
+        int[] ret = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, ret, a.length, b.length);
+        return ret;
+    }
+
+    @FunctionalInterface
+    protected interface ParameterBinder {
+        void bind(PreparedStatement stmt) throws SQLException;
+    }
+
+    @FunctionalInterface
+    protected interface BatchAction {
+        void run() throws SQLException;
+    }
+
+    /**
+     * Prepare a statement on this query's connection, from the statement cache if there is one.
+     */
+    protected PreparedStatement prepareStatement(String sql) throws SQLException {
+        return prepareStatement(conn, statementCache, sql);
+    }
+
+    private static PreparedStatement prepareStatement(Connection target, StatementCache cache, String sql) throws SQLException {
+        return cache == null ? target.prepareStatement(sql) : cache.borrow(sql);
+    }
+
+    /**
+     * Hand a statement from {@link #prepareStatement(String)} back, or close it if not cached.
+     */
+    protected void releaseStatement(String sql, PreparedStatement stmt) {
+        releaseStatement(statementCache, sql, stmt);
+    }
+
+    private static void releaseStatement(StatementCache cache, String sql, PreparedStatement stmt) {
+        if (cache != null) {
+            cache.release(sql, stmt);
+            return;
+        }
+        try {
+            stmt.close();
+        } catch (SQLException ex) {
+            throw new RuntimeException(sql, ex);
         }
+    }
 
-        boolean firstClause = true;
-        if (whereClause.size() > 0) {
-            sql += " WHERE";
-            for (Map.Entry<?, ?> e : whereClause.entrySet()) {
-                if (!firstClause) sql += " AND";
-                firstClause = false;
-                sql += " " + e.getKey();
-                parameters.add(e.getValue());
+    /**
+     * Bind the parameters in order, null values are bound as SQL NULL.
+     */
+    protected static void bindParameters(PreparedStatement stmt, List<Object> parameters) throws SQLException {
+        int idx = 1;
+        for (Object o : parameters) {
+            if (o == null) {
+                stmt.setNull(idx, Types.NULL);
+            } else if (o instanceof CompiledQuery.Slot) {
+                throw new IllegalStateException("Query with placeholders must be executed through compile()");
+            } else if (o instanceof byte[]) {
+                stmt.setBytes(idx, (byte[]) o);
+            } else {
+                stmt.setObject(idx, o);
             }
+            idx++;
         }
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            int idx = 1;
-            for (Object o : parameters) {
-                if (o == null) {
-                    stmt.setNull(idx, Types.NULL);
-                } else {
-                    stmt.setObject(idx, o);
-                }
-                idx++;
+    }
+
+    /**
+     * Prepare, bind and run one statement, then release it.
+     * Any checked exception is wrapped into a RuntimeException carrying the SQL.
+     */
+    protected <R> R execute(String sql, List<Object> parameters, StatementAction<R> action) {
+        return execute(sql, parameters, true, action);
+    }
+
+    /**
+     * @param replicaAllowed false to keep a select on the connection of the query
+     */
+    protected <R> R execute(String sql, List<Object> parameters, boolean replicaAllowed, StatementAction<R> action) {
+        PreparedStatement stmt = null;
+        Connection replica = null;
+        boolean writerLocked = false;
+        StatementCache cache = statementCache;
+        QueryMetrics metrics = database == null ? null : database.getMetrics();
+        long start = metrics == null ? 0 : System.nanoTime();
+        R result = null;
+        boolean failed = true;
+        try {
+            explain(sql, parameters);
+            if (replicaAllowed) replica = borrowReadConnection(sql);
+            if (replica != null) {
+                cache = database.getStatementCache(replica);
+                stmt = prepareStatement(replica, cache, sql);
+            } else {
+                if (database != null && !sql.startsWith("SELECT")) database.onWrite();
+                writerLocked = lockWriter(sql);
+                stmt = prepareStatement(sql);
             }
-            stmt.execute();
-        } catch (SQLException ex) {
+            bindParameters(stmt, parameters);
+            result = action.apply(stmt);
+            failed = false;
+            return result;
+        } catch (SQLException | ReflectiveOperationException ex) {
             throw new RuntimeException(sql, ex);
+        } finally {
+            try {
+                if (stmt != null) releaseStatement(cache, sql, stmt);
+            } finally {
+                if (replica != null) database.releaseReadConnection(replica);
+                if (writerLocked) database.unlockWriter();
+            }
+            if (metrics != null) {
+                metrics.record(table.tableName, QueryMetrics.getOperation(sql), sql, System.nanoTime() - start, getRowCount(sql, result), failed);
+            }
+        }
+    }
+
+    /**
+     * Rows returned or affected as seen by the metrics:
+     * the size of a list or map result, the update count of a write,
+     * otherwise one row for any other non-null result
+     */
+    private static long getRowCount(String sql, Object result) {
+        if (result == null) return 0;
+        if (result instanceof Collection) return ((Collection<?>) result).size();
+        if (result instanceof Map) return ((Map<?, ?>) result).size();
+        if (result instanceof Integer && !sql.startsWith("SELECT")) return (Integer) result;
+        return 1;
+    }
+
+    /**
+     * Take the writer lock of the database before a write on the connection of this query.
+     * A transactional query keeps it from its first write until commit, rollback or close,
+     * which must happen on the thread that wrote. Other queries take it for each write.
+     * Reads never wait for it: a transaction that reads before it writes may fail on a snapshot
+     * made stale by another writer (SQLITE_BUSY_SNAPSHOT), which {@link RelationalDB#inTransaction} retries.
+     *
+     * @return true if the caller must unlock it after the statement
+     */
+    private boolean lockWriter(String sql) {
+        if (database == null || holdsWriter || sql.startsWith("SELECT")) return false;
+        if (this instanceof TransactionalQuery) {
+            database.lockWriter();
+            holdsWriter = true;
+            return false;
+        }
+        database.lockWriter();
+        return true;
+    }
+
+    /**
+     * Release the writer lock held by the transaction of this query, if any
+     */
+    protected void unlockWriter() {
+        if (!holdsWriter) return;
+        holdsWriter = false;
+        database.unlockWriter();
+    }
+
+    /**
+     * Get a replica connection for a select of a non-transactional query
+     *
+     * @return the connection, null to run the statement on the connection of the query
+     */
+    private Connection borrowReadConnection(String sql) throws SQLException {
+        if (!readFromReplica || database == null || !sql.startsWith("SELECT") || !conn.getAutoCommit()) return null;
+        return database.borrowReadConnection();
+    }
+
+    /**
+     * Hand reads, updates and deletes to the explain debug mode of the database
+     */
+    private void explain(String sql, List<Object> parameters) {
+        if (database == null || !database.isExplainQueries()) return;
+        if (sql.startsWith("SELECT") || sql.startsWith("UPDATE") || sql.startsWith("DELETE")) {
+            database.explainQuery(conn, sql, parameters);
         }
     }
 
+    @FunctionalInterface
+    protected interface StatementAction<R> {
+        R apply(PreparedStatement stmt) throws SQLException, ReflectiveOperationException;
+    }
+
     @Override
     public Connection getConnection() {
         return conn;
@@ -271,7 +1577,11 @@ public abstract class SynchronizedQuery<T> implements Query<T> {
 
     public abstract static class NonTransactionalQuery<T> extends SynchronizedQuery<T> {
         public NonTransactionalQuery(Class<T> tableClass, Connection conn) {
-            super(tableClass, conn);
+            this(tableClass, conn, null);
+        }
+
+        public NonTransactionalQuery(Class<T> tableClass, Connection conn, BaseDatabase database) {
+            super(tableClass, conn, database);
             try {
                 conn.setAutoCommit(true);
             } catch (SQLException ex) {
@@ -293,12 +1603,18 @@ public abstract class SynchronizedQuery<T> implements Query<T> {
     /**
      * All transactions will automatically rollback on close.
      * If no commit or rollback executed.
+     * After its first write the transaction holds the writer lock of databases that serialize their writers,
+     * so it must be committed, rolled back or closed promptly, on the thread that wrote.
      */
     public abstract static class TransactionalQuery<T> extends SynchronizedQuery<T> {
         protected boolean rollbackOnClose = true;
 
         public TransactionalQuery(Class<T> tableClass, Connection conn) {
-            super(tableClass, conn);
+            this(tableClass, conn, null);
+        }
+
+        public TransactionalQuery(Class<T> tableClass, Connection conn, BaseDatabase database) {
+            super(tableClass, conn, database);
             try {
                 conn.setAutoCommit(false);
             } catch (SQLException ex) {
@@ -313,7 +1629,11 @@ public abstract class SynchronizedQuery<T> implements Query<T> {
                 conn.commit();
             } catch (SQLException e) {
                 throw new RuntimeException(e);
+            } finally {
+                unlockWriter();
             }
+            invalidateWrittenKeys();
+            publishPendingChanges();
         }
 
         @Override
@@ -323,17 +1643,21 @@ public abstract class SynchronizedQuery<T> implements Query<T> {
                 conn.rollback();
             } catch (SQLException e) {
                 throw new RuntimeException(e);
+            } finally {
+                unlockWriter();
             }
+            writtenKeys = new HashSet<>();
+            pendingChanges = new ArrayList<>();
         }
 
         @Override
         public void close() {
-            if (rollbackOnClose) {
-                try {
-                    conn.rollback();
-                } catch (SQLException e) {
-                    throw new RuntimeException(e);
-                }
+            try {
+                if (rollbackOnClose) conn.rollback();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            } finally {
+                unlockWriter();
             }
         }
     }
@@ -1,23 +1,35 @@
 package cat.nyaa.nyaacore.database.relational;
 
 import javax.persistence.Column;
+import javax.persistence.Index;
 import javax.persistence.Table;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class TableStructure<T> {
+    private static final int MAX_CACHED_INSERT_SQL = 8;
+
     /* class -> TableStructure cache */
-    private static final Map<Class<?>, TableStructure<?>> structured_tables = new HashMap<>();
+    private static final ConcurrentMap<Class<?>, TableStructure<?>> structured_tables = new ConcurrentHashMap<>();
 
     @SuppressWarnings("unchecked")
     public static <X> TableStructure<X> fromClass(Class<X> cls) {
-        if (structured_tables.containsKey(cls)) return (TableStructure<X>) structured_tables.get(cls);
-        TableStructure<X> ts = new TableStructure<>(cls);
-        structured_tables.put(cls, ts);
-        return ts;
+        TableStructure<?> ts = structured_tables.get(cls);
+        if (ts != null) return (TableStructure<X>) ts;
+        // racing threads may both build it, only the first one is kept
+        ts = new TableStructure<>(cls);
+        TableStructure<?> existing = structured_tables.putIfAbsent(cls, ts);
+        return (TableStructure<X>) (existing == null ? ts : existing);
     }
 
     public final Class<T> tableClass;
@@ -25,7 +37,20 @@ public class TableStructure<T> {
 
     public final Map<String, ColumnStructure> columns = new HashMap<>();
     public final String primaryKey; // null if no primary key
-    public final List<String> orderedColumnName = new ArrayList<>();
+    public final List<String> orderedColumnName; // unmodifiable
+    public final List<IndexStructure> indexes = new ArrayList<>();
+    public final Cached cacheSettings; // null if rows are not cached
+
+    private final MethodHandle constructor; // ()Object, null to use reflection
+
+    /* SQL fragments of the hot path, built once */
+    private final String columnNamesString;
+    private final String selectSql;
+    private final String rowPlaceholders;
+    private final String insertSql;
+    private final String primaryKeyWhere;
+    private final Map<Integer, String> multiRowInsertSql = new ConcurrentHashMap<>();
+    private final Map<List<String>, RowMapper<T>> rowMappers = new ConcurrentHashMap<>();
 
     private TableStructure(Class<T> tableClass) {
         Table annoDT = tableClass.getDeclaredAnnotation(Table.class);
@@ -39,6 +64,7 @@ public class TableStructure<T> {
             this.tableName = annoDT.name();
         }
 
+        this.cacheSettings = tableClass.getDeclaredAnnotation(Cached.class);
         String primKeyName = null;
 
         // load all the fields
@@ -53,6 +79,7 @@ public class TableStructure<T> {
                 primKeyName = structure.getName();
             }
             columns.put(structure.getName(), structure);
+            addColumnIndex(f.getAnnotation(Indexed.class), structure.getName());
         }
 
         // load all the getter/setter
@@ -67,11 +94,58 @@ public class TableStructure<T> {
                 primKeyName = structure.getName();
             }
             columns.put(structure.getName(), structure);
+            addColumnIndex(m.getAnnotation(Indexed.class), structure.getName());
         }
 
         primaryKey = primKeyName;
-        orderedColumnName.addAll(columns.keySet());
-        orderedColumnName.sort(String::compareTo);
+        List<String> ordered = new ArrayList<>(columns.keySet());
+        ordered.sort(String::compareTo);
+        orderedColumnName = Collections.unmodifiableList(ordered);
+
+        columnNamesString = String.join(",", orderedColumnName);
+        selectSql = "SELECT " + columnNamesString + " FROM " + tableName;
+        rowPlaceholders = "(" + String.join(",", Collections.nCopies(orderedColumnName.size(), "?")) + ")";
+        insertSql = "INSERT INTO " + tableName + "(" + columnNamesString + ") VALUES" + rowPlaceholders;
+        primaryKeyWhere = primaryKey == null ? null : primaryKey + "=?";
+
+        // load the composite indexes
+        for (Index index : annoDT.indexes()) {
+            List<String> indexColumns = new ArrayList<>();
+            for (String col : index.columnList().split(",")) {
+                col = col.trim();
+                if (col.isEmpty()) continue;
+                // JPA allows "col ASC/DESC", only the column name matters for lookups
+                col = col.split("\\s+")[0];
+                if (!columns.containsKey(col))
+                    throw new RuntimeException("Unknown column in index: " + col + " of " + tableClass.getName());
+                indexColumns.add(col);
+            }
+            if (indexColumns.isEmpty()) throw new RuntimeException("Empty index column list in " + tableClass.getName());
+            addIndex(new IndexStructure(index.name(), indexColumns, index.unique()));
+        }
+
+        MethodHandle ctor;
+        try {
+            Constructor<T> c = tableClass.getDeclaredConstructor();
+            c.setAccessible(true);
+            ctor = MethodHandles.lookup().unreflectConstructor(c).asType(MethodType.methodType(Object.class));
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            ctor = null;
+        }
+        constructor = ctor;
+    }
+
+    private void addColumnIndex(Indexed anno, String columnName) {
+        if (anno == null) return;
+        addIndex(new IndexStructure(anno.name(), Collections.singletonList(columnName), anno.unique()));
+    }
+
+    private void addIndex(IndexStructure index) {
+        for (IndexStructure i : indexes) {
+            if (i.name.equalsIgnoreCase(index.name))
+                throw new RuntimeException("Duplicated index name: " + index.name);
+        }
+        indexes.add(index);
     }
 
     public Class<T> getTableClass() {
@@ -102,13 +176,45 @@ public class TableStructure<T> {
      * return comma separated list of column names
      */
     public String getColumnNamesString() {
-        if (orderedColumnName.size() == 0) return "";
-        StringBuilder sb = new StringBuilder(orderedColumnName.get(0));
-        for (int i = 1; i < orderedColumnName.size(); i++) {
-            sb.append(",");
-            sb.append(orderedColumnName.get(i));
-        }
-        return sb.toString();
+        return columnNamesString;
+    }
+
+    /**
+     * @return "SELECT all_columns FROM this_table"
+     */
+    public String getSelectSql() {
+        return selectSql;
+    }
+
+    /**
+     * @return "(?,?,...)" with one placeholder per column
+     */
+    public String getRowPlaceholders() {
+        return rowPlaceholders;
+    }
+
+    /**
+     * @param rows number of rows in the VALUES list
+     * @return "INSERT INTO this_table(all_columns) VALUES(?,...),(?,...)..."
+     */
+    public String getInsertSql(int rows) {
+        if (rows == 1) return insertSql;
+        if (rows <= 0) throw new IllegalArgumentException("rows must be positive: " + rows);
+        String sql = multiRowInsertSql.get(rows);
+        if (sql != null) return sql;
+        StringBuilder sb = new StringBuilder(insertSql.length() + (rows - 1) * (rowPlaceholders.length() + 1)).append(insertSql);
+        for (int i = 1; i < rows; i++) sb.append(',').append(rowPlaceholders);
+        sql = sb.toString();
+        // full batch chunks repeat, the odd sized last chunks would only fill the map
+        if (multiRowInsertSql.size() < MAX_CACHED_INSERT_SQL) multiRowInsertSql.put(rows, sql);
+        return sql;
+    }
+
+    /**
+     * @return "primary_key=?", null if the table has no primary key
+     */
+    public String getPrimaryKeyWhere() {
+        return primaryKeyWhere;
     }
 
     public String getCreateTableSQL() {
@@ -122,6 +228,14 @@ public class TableStructure<T> {
         return String.format("CREATE TABLE IF NOT EXISTS %s(%s)", tableName, colStr.toString());
     }
 
+    public Cached getCacheSettings() {
+        return cacheSettings;
+    }
+
+    public List<IndexStructure> getIndexes() {
+        return indexes;
+    }
+
     /**
      * @deprecated magic string
      */
@@ -171,16 +285,63 @@ public class TableStructure<T> {
         return objects;
     }
 
+    /**
+     * Create an empty table object with the no-arg constructor
+     */
+    @SuppressWarnings({"unchecked", "deprecation"})
+    public T newInstance() throws ReflectiveOperationException {
+        if (constructor == null) return tableClass.newInstance();
+        try {
+            return (T) (Object) constructor.invokeExact();
+        } catch (ReflectiveOperationException | RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new InvocationTargetException(ex);
+        }
+    }
+
     /**
      * Construct ONE table object from Java ResultSet.
      * Only CURRENT result row will be picked
      */
     public T getObjectFromResultSet(ResultSet rs) throws ReflectiveOperationException, SQLException {
-        T obj = tableClass.newInstance();
-        for (String colName : orderedColumnName) {
-            Object colValue = rs.getObject(colName);
-            this.columns.get(colName).setSqlObject(obj, colValue);
+        return getObjectFromResultSet(rs, orderedColumnName);
+    }
+
+    /**
+     * Construct ONE table object from the given columns of the CURRENT result row.
+     * Other fields keep the values set by the no-arg constructor.
+     * The columns are looked up by name on every call, to map many rows of a result
+     * get a mapper once with {@link RowMapper#fromMetaData} and keep it for that result.
+     */
+    public T getObjectFromResultSet(ResultSet rs, List<String> columnNames) throws ReflectiveOperationException, SQLException {
+        return RowMapper.fromMetaData(this, rs.getMetaData(), columnNames).map(rs);
+    }
+
+    /**
+     * Get the mapper for results of "SELECT columnNames FROM this_table ...", in this column order.
+     * Mappers are cached per column list.
+     */
+    public RowMapper<T> getRowMapper(List<String> columnNames) {
+        return rowMappers.computeIfAbsent(columnNames, cols -> RowMapper.forSelect(this, cols));
+    }
+
+    /**
+     * A secondary index declared by {@link Indexed} or {@link Table#indexes()}
+     */
+    public class IndexStructure {
+        public final String name;
+        public final List<String> columns;
+        public final boolean unique;
+
+        IndexStructure(String name, List<String> columns, boolean unique) {
+            this.columns = Collections.unmodifiableList(new ArrayList<>(columns));
+            this.unique = unique;
+            this.name = name.isEmpty() ? "idx_" + tableName + "_" + String.join("_", columns) : name;
+        }
+
+        public String getCreateIndexSQL() {
+            return String.format("CREATE %sINDEX %s ON %s(%s)", unique ? "UNIQUE " : "", name, tableName, String.join(",", columns));
         }
-        return obj;
     }
 }
@@ -0,0 +1,155 @@
+package cat.nyaa.nyaacore.database.relational;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One attempt of a unit of work run by {@link RelationalDB#inTransaction(java.util.function.Function)}.
+ * All queries of the context share one connection and are committed together when the work returns,
+ * or rolled back together if it throws.
+ */
+public class TransactionContext {
+    private final BaseDatabase database;
+    private final Connection conn;
+    private final int attempt;
+    private final List<SynchronizedQuery<?>> queries = new ArrayList<>();
+
+    TransactionContext(BaseDatabase database, Connection conn, int attempt) {
+        this.database = database;
+        this.conn = conn;
+        this.attempt = attempt;
+    }
+
+    /**
+     * Create a query in the transaction. It is committed or rolled back with the context,
+     * calling {@link Query#commit()} or {@link Query#rollback()} on it is not allowed and closing it does nothing.
+     *
+     * @param tableClass the table class type
+     * @param <T>        the table to be worked on
+     * @return the query
+     */
+    public <T> Query<T> query(Class<T> tableClass) {
+        database.createTable(tableClass);
+        SynchronizedQuery<T> query = new SynchronizedQuery.TransactionalQuery<T>(tableClass, conn, database) {
+            @Override
+            public void commit() {
+                throw new UnsupportedOperationException("committed by inTransaction()");
+            }
+
+            @Override
+            public void rollback() {
+                throw new UnsupportedOperationException("rolled back by inTransaction()");
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        queries.add(query);
+        return query;
+    }
+
+    /**
+     * @return the connection of the transaction, for anything the queries can not do
+     */
+    public Connection getConnection() {
+        return conn;
+    }
+
+    /**
+     * @return 0 for the first run of the work, then the number of the retry
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    void commit() throws SQLException {
+        try {
+            conn.commit();
+        } finally {
+            for (SynchronizedQuery<?> query : queries) query.unlockWriter();
+        }
+        for (SynchronizedQuery<?> query : queries) {
+            query.invalidateWrittenKeys();
+            query.publishPendingChanges();
+        }
+    }
+
+    void rollback() {
+        try {
+            conn.rollback();
+        } catch (SQLException ex) {
+            database.getLogger().warning("Rollback failed: " + ex.getMessage());
+        } finally {
+            for (SynchronizedQuery<?> query : queries) {
+                query.unlockWriter();
+                query.writtenKeys = new HashSet<>();
+                query.pendingChanges = new ArrayList<>();
+            }
+        }
+    }
+
+    /**
+     * Counters of the units of work of one database
+     */
+    public static class Statistics {
+        private final AtomicLong transactions = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos, int retries, boolean failed) {
+            transactions.incrementAndGet();
+            this.retries.addAndGet(retries);
+            if (failed) failures.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        public long getTransactions() {
+            return transactions.get();
+        }
+
+        public long getRetries() {
+            return retries.get();
+        }
+
+        /**
+         * @return units of work that threw, after their retries if any
+         */
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * @return average time of a unit of work including its retries, in milliseconds
+         */
+        public double getAverageMillis() {
+            long n = transactions.get();
+            return n == 0 ? 0 : totalNanos.get() / 1e6 / n;
+        }
+
+        public double getMaxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+
+        public void reset() {
+            transactions.set(0);
+            retries.set(0);
+            failures.set(0);
+            totalNanos.set(0);
+            maxNanos.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("transactions=%d, retries=%d, failures=%d, avg=%.2fms, max=%.2fms",
+                    getTransactions(), getRetries(), getFailures(), getAverageMillis(), getMaxMillis());
+        }
+    }
+}
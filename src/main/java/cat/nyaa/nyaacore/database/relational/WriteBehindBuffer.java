@@ -0,0 +1,343 @@
+package cat.nyaa.nyaacore.database.relational;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+
+/**
+ * Queue inserts and updates and write them in the background, many rows per transaction.
+ * <p>
+ * Pending writes are flushed every flush interval or as soon as flush rows are queued,
+ * whichever comes first, on a connection from {@link RelationalDB#newConnection()}.
+ * Consecutive writes to the same table are sent as one JDBC batch.
+ * When the queue is full, callers block until the writer catches up (backpressure).
+ * If a transaction fails it is rolled back and its rows are retried one by one,
+ * so a single bad row only loses itself.
+ * Writes are applied in the order they were queued, but are not visible to queries before they are flushed.
+ */
+public class WriteBehindBuffer implements AutoCloseable {
+    private final BaseDatabase database;
+    private final Settings settings;
+    private final ArrayBlockingQueue<PendingWrite> queue;
+    private final Thread writer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushRequested = lock.newCondition();
+    private final Object flushLock = new Object(); // one flush at a time
+    private volatile boolean closed = false;
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushNanos = new AtomicLong();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+
+    public WriteBehindBuffer(BaseDatabase database, Settings settings) {
+        if (settings.queueSize <= 0 || settings.flushRows <= 0 || settings.flushInterval <= 0)
+            throw new IllegalArgumentException("write-behind queue size, flush rows and flush interval must be positive");
+        this.database = database;
+        this.settings = settings;
+        this.queue = new ArrayBlockingQueue<>(settings.queueSize);
+        this.writer = new Thread(this::run, "NyaaCore-WriteBehind-" + database.getClass().getSimpleName());
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public Settings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Queue an insert.
+     *
+     * @param object the row
+     */
+    public void insert(Object object) {
+        enqueue(new PendingWrite(object, null));
+    }
+
+    /**
+     * Queue an update of the row with the same primary key.
+     *
+     * @param object  the row
+     * @param columns columns to update, all non-key columns if empty
+     */
+    public void update(Object object, String... columns) {
+        if (TableStructure.fromClass(object.getClass()).getPrimaryKey() == null)
+            throw new IllegalArgumentException("Table has no primary key: " + object.getClass().getName());
+        enqueue(new PendingWrite(object, columns == null ? new String[0] : columns));
+    }
+
+    private void enqueue(PendingWrite write) {
+        if (closed) throw new IllegalStateException("write-behind buffer closed");
+        database.createTable(write.tableClass);
+        if (!queue.offer(write)) {
+            blocked.incrementAndGet();
+            requestFlush();
+            try {
+                if (settings.offerTimeout <= 0) {
+                    queue.put(write);
+                } else if (!queue.offer(write, settings.offerTimeout, TimeUnit.MILLISECONDS)) {
+                    throw new IllegalStateException("write-behind queue still full after " + settings.offerTimeout + "ms");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted waiting for write-behind queue", ex);
+            }
+        }
+        enqueued.incrementAndGet();
+        if (queue.size() >= settings.flushRows) requestFlush();
+    }
+
+    private void requestFlush() {
+        lock.lock();
+        try {
+            flushRequested.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            lock.lock();
+            try {
+                if (!closed && queue.size() < settings.flushRows) {
+                    flushRequested.await(settings.flushInterval, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                flush();
+            } catch (RuntimeException ex) {
+                database.getLogger().log(Level.SEVERE, "write-behind flush failed", ex);
+            }
+        }
+    }
+
+    /**
+     * Write all queued rows now, on the calling thread.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            List<PendingWrite> batch = new ArrayList<>(settings.flushRows);
+            while (queue.drainTo(batch, settings.flushRows) > 0) {
+                long start = System.nanoTime();
+                write(batch);
+                long elapsed = System.nanoTime() - start;
+                flushes.incrementAndGet();
+                flushNanos.addAndGet(elapsed);
+                maxFlushNanos.accumulateAndGet(elapsed, Math::max);
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<PendingWrite> batch) {
+        Connection conn = database.newConnection();
+        // each query takes the writer lock of the database on its first write, released once the transaction ends
+        List<SynchronizedQuery<?>> queries = new ArrayList<>();
+        try {
+            try {
+                conn.setAutoCommit(false);
+                int from = 0;
+                while (from < batch.size()) {
+                    int to = from + 1;
+                    while (to < batch.size() && batch.get(to).sameStatement(batch.get(from))) to++;
+                    writeRun(conn, batch.subList(from, to), true, queries);
+                    from = to;
+                }
+                conn.commit();
+                queries.forEach(SynchronizedQuery::unlockWriter);
+                for (SynchronizedQuery<?> query : queries) {
+                    query.invalidateWrittenKeys();
+                    query.publishPendingChanges();
+                }
+                written.addAndGet(batch.size());
+            } catch (SQLException | RuntimeException ex) {
+                database.getLogger().log(Level.WARNING, "write-behind transaction of " + batch.size() + " rows failed, retrying rows one by one", ex);
+                try {
+                    conn.rollback();
+                } catch (SQLException e) {
+                    database.getLogger().log(Level.WARNING, "rollback failed", e);
+                }
+                for (SynchronizedQuery<?> query : queries) {
+                    query.unlockWriter();
+                    query.pendingChanges = new ArrayList<>();
+                }
+                writeOneByOne(conn, batch);
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            database.recycleConnection(conn);
+        }
+    }
+
+    private void writeOneByOne(Connection conn, List<PendingWrite> batch) {
+        for (PendingWrite write : batch) {
+            List<SynchronizedQuery<?>> queries = new ArrayList<>(1);
+            try {
+                writeRun(conn, Collections.singletonList(write), false, queries);
+                written.incrementAndGet();
+            } catch (RuntimeException ex) {
+                failed.incrementAndGet();
+                database.getLogger().log(Level.SEVERE, "write-behind row dropped: " + write.object, ex);
+            } finally {
+                queries.forEach(SynchronizedQuery::unlockWriter);
+            }
+        }
+    }
+
+    /**
+     * Write a run of rows of the same statement. The query is added to queries before its first statement,
+     * so the caller releases the writer lock it may hold even if the statement fails.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void writeRun(Connection conn, List<PendingWrite> run, boolean transactional, List<SynchronizedQuery<?>> queries) {
+        PendingWrite first = run.get(0);
+        List<Object> rows = new ArrayList<>(run.size());
+        for (PendingWrite write : run) rows.add(write.object);
+        // the commit/rollback of the transactional query are driven by write(), never by close()
+        SynchronizedQuery query = transactional ? new SynchronizedQuery.TransactionalQuery(first.tableClass, conn, database) {
+            @Override
+            public void close() {
+            }
+        } : new SynchronizedQuery.NonTransactionalQuery(first.tableClass, conn, database) {
+            @Override
+            public void close() {
+            }
+        };
+        queries.add(query);
+        if (first.updateColumns == null) {
+            query.insertAll(rows);
+        } else {
+            query.updateAll(rows, first.updateColumns);
+        }
+    }
+
+    /**
+     * @return number of writes waiting to be flushed
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public Statistics getStatistics() {
+        return new Statistics(queue.size(), enqueued.get(), written.get(), failed.get(), flushes.get(),
+                flushNanos.get(), maxFlushNanos.get(), blocked.get());
+    }
+
+    /**
+     * Stop the writer and flush everything still queued.
+     * Writes queued afterwards are rejected.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        requestFlush();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * Buffer settings, all durations are in milliseconds
+     */
+    public static class Settings {
+        /* writes queued before callers block */
+        public int queueSize = 10000;
+        /* flush as soon as this many writes are queued, also the max rows per transaction */
+        public int flushRows = 1000;
+        /* flush at least this often */
+        public long flushInterval = 1000;
+        /* how long a caller blocks on a full queue before failing, 0 to wait forever */
+        public long offerTimeout = 0;
+
+        public Settings copy() {
+            Settings copy = new Settings();
+            copy.queueSize = queueSize;
+            copy.flushRows = flushRows;
+            copy.flushInterval = flushInterval;
+            copy.offerTimeout = offerTimeout;
+            return copy;
+        }
+    }
+
+    /**
+     * A snapshot of buffer state and counters
+     */
+    public static class Statistics {
+        public final int queueDepth;
+        public final long enqueued;
+        public final long written;
+        public final long failed;
+        public final long flushes;
+        public final long totalFlushNanos;
+        public final long maxFlushNanos;
+        public final long blocked;
+
+        Statistics(int queueDepth, long enqueued, long written, long failed, long flushes,
+                   long totalFlushNanos, long maxFlushNanos, long blocked) {
+            this.queueDepth = queueDepth;
+            this.enqueued = enqueued;
+            this.written = written;
+            this.failed = failed;
+            this.flushes = flushes;
+            this.totalFlushNanos = totalFlushNanos;
+            this.maxFlushNanos = maxFlushNanos;
+            this.blocked = blocked;
+        }
+
+        /**
+         * @return average time of one flush transaction, in milliseconds
+         */
+        public double getAverageFlushMillis() {
+            return flushes == 0 ? 0 : totalFlushNanos / 1e6 / flushes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("queued=%d, enqueued=%d, written=%d, failed=%d, flushes=%d, avgFlush=%.3fms, maxFlush=%.3fms, blocked=%d",
+                    queueDepth, enqueued, written, failed, flushes, getAverageFlushMillis(), maxFlushNanos / 1e6, blocked);
+        }
+    }
+
+    private static class PendingWrite {
+        final Object object;
+        final Class<?> tableClass;
+        final String[] updateColumns; // null for insert
+
+        PendingWrite(Object object, String[] updateColumns) {
+            this.object = object;
+            this.tableClass = object.getClass();
+            this.updateColumns = updateColumns;
+        }
+
+        boolean sameStatement(PendingWrite other) {
+            if (tableClass != other.tableClass) return false;
+            if (updateColumns == null || other.updateColumns == null) return updateColumns == other.updateColumns;
+            return Arrays.equals(updateColumns, other.updateColumns);
+        }
+    }
+}
@@ -1,34 +1,70 @@
 package cat.nyaa.nyaacore.database;
 
-import cat.nyaa.nyaacore.database.relational.RelationalDB;
+import cat.nyaa.nyaacore.database.provider.SQLiteDatabase;
+import cat.nyaa.nyaacore.database.relational.AsyncQuery;
+import cat.nyaa.nyaacore.database.relational.BaseDatabase;
+import cat.nyaa.nyaacore.database.relational.Cached;
+import cat.nyaa.nyaacore.database.relational.CompiledQuery;
+import cat.nyaa.nyaacore.database.relational.ConnectionPool;
+import cat.nyaa.nyaacore.database.relational.Dialect;
+import cat.nyaa.nyaacore.database.relational.EntityCache;
+import cat.nyaa.nyaacore.database.relational.Indexed;
 import cat.nyaa.nyaacore.database.relational.Query;
+import cat.nyaa.nyaacore.database.relational.QueryMetrics;
+import cat.nyaa.nyaacore.database.relational.RelationalDB;
+import cat.nyaa.nyaacore.database.relational.RowChangeFeed;
+import cat.nyaa.nyaacore.database.relational.StatementCache;
+import cat.nyaa.nyaacore.database.relational.TableStructure;
+import cat.nyaa.nyaacore.database.relational.TransactionContext;
+import cat.nyaa.nyaacore.database.relational.WriteBehindBuffer;
 import org.bukkit.plugin.Plugin;
 import org.junit.*;
 import org.sqlite.SQLiteException;
 
+import javax.persistence.Column;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 public class SqliteDatabaseTest {
     private RelationalDB db;
     private RelationalDB db2;
+    private Plugin mockPlugin;
+    private Map<String, Object> conf;
     @Before
     public void prepareDatabase() {
-        Map<String, Object> conf = new HashMap<>();
+        conf = new HashMap<>();
         File file = new File("./testdb.db");
         if(file.exists()){
             if(!new File("./testdb.db").delete()){
                 throw new IllegalStateException();
             }
         }
+        new File("./testdb.db-wal").delete();
+        new File("./testdb.db-shm").delete();
         conf.put("file", "testdb.db");
         conf.put("autoscan", "false");
         conf.put("tables", Collections.singleton(TestTable.class.getName()));
-        Plugin mockPlugin = mock(Plugin.class);
+        mockPlugin = mock(Plugin.class);
         when(mockPlugin.getDataFolder()).thenReturn(new File("./"));
         when(mockPlugin.getLogger()).thenReturn(Logger.getGlobal());
         db = DatabaseUtils.get("sqlite", mockPlugin, conf, RelationalDB.class);
@@ -123,6 +159,1102 @@ public class SqliteDatabaseTest {
         assertEquals(4, db2.query(TestTable.class).count());
     }
 
+    @Test
+    public void testStatementCacheHit() {
+        StatementCache.Statistics stats = ((BaseDatabase) db).getStatementCacheStatistics();
+        db.query(TestTable.class).insert(new TestTable(1L, "test", UUID.randomUUID(), UUID.randomUUID()));
+        stats.reset();
+        for (int i = 0; i < 10; i++) {
+            assertEquals("test", db.query(TestTable.class).whereEq("id", 1L).selectUnique().string);
+        }
+        assertEquals(1, stats.getMisses());
+        assertEquals(9, stats.getHits());
+        db.query(TestTable.class).whereEq("string", "test").whereEq("id", 1L).count();
+        db.query(TestTable.class).whereEq("id", 1L).whereEq("string", "test").count();
+        assertEquals(2, stats.getMisses());
+    }
+
+    @Test
+    public void testInsertAll() {
+        List<TestTable> records = new ArrayList<>();
+        for (long i = 1; i <= 1203; i++) {
+            records.add(new TestTable(i, "bulk", UUID.randomUUID(), UUID.randomUUID()));
+        }
+        db.query(TestTable.class).batchSize(100).insertAll(records);
+        assertEquals(1203, db.query(TestTable.class).count());
+        TestTable last = db.query(TestTable.class).whereEq("id", 1203L).selectUnique();
+        assertEquals(records.get(1202).uuid, last.uuid);
+        assertEquals(records.get(1202).uuid_indirect, last.uuid_indirect);
+    }
+
+    @Test
+    public void testInsertAllRollbackOnFailure() {
+        List<TestTable> records = new ArrayList<>();
+        for (long i = 1; i <= 10; i++) {
+            records.add(new TestTable(i, "bulk", UUID.randomUUID(), UUID.randomUUID()));
+        }
+        records.add(new TestTable(5L, "duplicated", UUID.randomUUID(), UUID.randomUUID()));
+        try {
+            db.query(TestTable.class).insertAll(records);
+            fail();
+        } catch (RuntimeException ignored) {
+        }
+        assertEquals(0, db.query(TestTable.class).count());
+    }
+
+    @Test
+    public void testBatchIsolatedFromSharedConnection() throws Exception {
+        List<TestTable> records = new ArrayList<>();
+        for (long i = 1; i <= 2000; i++) {
+            records.add(new TestTable(i, "bulk", UUID.randomUUID(), UUID.randomUUID()));
+        }
+        records.add(new TestTable(1L, "duplicated", UUID.randomUUID(), UUID.randomUUID()));
+        // queries built on other threads put the default connection in auto-commit mode
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread other = new Thread(() -> {
+            while (running.get()) db.query(TestTable.class);
+        });
+        other.start();
+        try {
+            db.query(TestTable.class).batchSize(1).insertAll(records);
+            fail();
+        } catch (RuntimeException ignored) {
+        } finally {
+            running.set(false);
+            other.join();
+        }
+        assertEquals(0, db.query(TestTable.class).count());
+        assertTrue(db.getConnection().getAutoCommit());
+    }
+
+    @Test
+    public void testUpdateAllAndDeleteByKeys() {
+        List<TestTable> records = new ArrayList<>();
+        for (long i = 1; i <= 20; i++) {
+            records.add(new TestTable(i, "before", UUID.randomUUID(), UUID.randomUUID()));
+        }
+        db.query(TestTable.class).insertAll(records);
+        for (TestTable record : records) {
+            record.string = "after";
+        }
+        db.query(TestTable.class).batchSize(7).updateAll(records, "string");
+        assertEquals(20, db.query(TestTable.class).whereEq("string", "after").count());
+        db.query(TestTable.class).deleteByKeys(Arrays.asList(1L, 2L, 3L, 42L));
+        assertEquals(17, db.query(TestTable.class).count());
+    }
+
+    @Test
+    public void testAsyncQuery() throws Exception {
+        AsyncQuery<TestTable> query = db.queryAsync(TestTable.class);
+        query.insert(new TestTable(1L, "async", UUID.randomUUID(), UUID.randomUUID())).get();
+        query.insert(new TestTable(2L, "other", UUID.randomUUID(), UUID.randomUUID())).get();
+        assertEquals(2, (int) query.count().get());
+        List<Thread> callbackThreads = new ArrayList<>();
+        TestTable ret = query.whereEq("string", "async").callbackExecutor(r -> {
+            callbackThreads.add(Thread.currentThread());
+            r.run();
+        }).selectUnique().get();
+        assertEquals(1L, (long) ret.id);
+        assertEquals(1, callbackThreads.size());
+
+        // a callback executor that refuses the task fails the future instead of leaving it pending
+        CompletableFuture<Integer> refused = query.callbackExecutor(r -> {
+            throw new IllegalStateException("plugin disabled");
+        }).count();
+        try {
+            refused.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testSelectStream() {
+        List<TestTable> records = new ArrayList<>();
+        for (long i = 1; i <= 100; i++) {
+            records.add(new TestTable(i, i % 2 == 0 ? "even" : "odd", UUID.randomUUID(), UUID.randomUUID()));
+        }
+        db.query(TestTable.class).insertAll(records);
+        try (Stream<TestTable> stream = db.query(TestTable.class).whereEq("string", "even").fetchSize(10).selectStream()) {
+            assertEquals(2550L, stream.mapToLong(t -> t.id).sum());
+        }
+        try (Stream<TestTable> stream = db.query(TestTable.class).selectStream()) {
+            assertEquals(3, stream.limit(3).count());
+        }
+        db.query(TestTable.class).whereEq("string", "odd").delete();
+        assertEquals(50, db.query(TestTable.class).count());
+    }
+
+    @Test
+    public void testRowByRowStreamOwnsConnection() {
+        List<Connection> borrowed = new ArrayList<>();
+        List<Connection> recycled = new ArrayList<>();
+        SQLiteDatabase rowByRow = new SQLiteDatabase(mockPlugin, "testdb.db") {
+            @Override
+            public int getStreamingFetchSize(int requested) {
+                return Integer.MIN_VALUE;
+            }
+
+            @Override
+            public Connection newConnection() {
+                Connection conn = super.newConnection();
+                borrowed.add(conn);
+                return conn;
+            }
+
+            @Override
+            public void recycleConnection(Connection conn) {
+                recycled.add(conn);
+                super.recycleConnection(conn);
+            }
+        };
+        try {
+            rowByRow.setReaders(0); // stream on the connection of the query
+            rowByRow.query(TestTable.class).insert(new TestTable(1L, "test", UUID.randomUUID(), UUID.randomUUID()));
+            borrowed.clear();
+            recycled.clear();
+            // the SQLite driver refuses the row by row fetch size, the connection must be recycled anyway
+            try (Stream<TestTable> stream = rowByRow.query(TestTable.class).selectStream()) {
+                stream.count();
+                fail();
+            } catch (RuntimeException ex) {
+                assertTrue(ex.getCause() instanceof java.sql.SQLException);
+            }
+            assertEquals(1, borrowed.size());
+            assertNotSame(rowByRow.getConnection(), borrowed.get(0));
+            assertEquals(borrowed, recycled);
+        } finally {
+            rowByRow.close();
+        }
+    }
+
+    @Test
+    public void testOrderLimitAndKeyset() {
+        List<TestTable> records = new ArrayList<>();
+        for (long i = 1; i <= 30; i++) {
+            records.add(new TestTable(i, "s" + (i % 3), UUID.randomUUID(), UUID.randomUUID()));
+        }
+        db.query(TestTable.class).insertAll(records);
+        List<TestTable> top = db.query(TestTable.class).orderBy("id", Query.Order.DESC).limit(3).select();
+        assertEquals(Arrays.asList(30L, 29L, 28L), top.stream().map(t -> t.id).collect(Collectors.toList()));
+        List<TestTable> skipped = db.query(TestTable.class).orderBy("id", Query.Order.ASC).offset(28).select();
+        assertEquals(Arrays.asList(29L, 30L), skipped.stream().map(t -> t.id).collect(Collectors.toList()));
+
+        List<Long> seen = new ArrayList<>();
+        TestTable last = null;
+        while (true) {
+            List<TestTable> page = db.query(TestTable.class).orderBy("string", Query.Order.DESC).after(last).limit(4).select();
+            if (page.isEmpty()) break;
+            page.forEach(t -> seen.add(t.id));
+            last = page.get(page.size() - 1);
+        }
+        List<Long> expected = records.stream()
+                                     .sorted(Comparator.comparing((TestTable t) -> t.string).reversed().thenComparing(t -> t.id))
+                                     .map(t -> t.id).collect(Collectors.toList());
+        assertEquals(expected, seen);
+        assertEquals(10, db.query(TestTable.class).whereEq("string", "s0").orderBy("id", Query.Order.ASC).count());
+    }
+
+    @Test
+    public void testIndexes() throws Exception {
+        db.query(IndexedTable.class).insert(new IndexedTable());
+        // a second database on the same file finds the indexes in place
+        db2.query(IndexedTable.class).count();
+        List<String> names = new ArrayList<>();
+        try (Statement stmt = db.getConnection().createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type='index' AND tbl_name='indexed' AND sql IS NOT NULL ORDER BY name")) {
+            while (rs.next()) names.add(rs.getString(1));
+        }
+        assertEquals(Arrays.asList("idx_indexed_owner", "idx_indexed_owner_time"), names);
+
+        List<LogRecord> records = new ArrayList<>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                if (record.getLevel() == Level.WARNING) records.add(record);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger.getGlobal().addHandler(handler);
+        try {
+            ((BaseDatabase) db).setExplainQueries(true);
+            db.query(IndexedTable.class).whereEq("owner", "a").where("time", ">", 1L).select();
+            db.query(IndexedTable.class).whereEq("owner", "b").select();
+            assertTrue(records.isEmpty());
+            db.query(IndexedTable.class).whereEq("item", "stone").select();
+            db.query(IndexedTable.class).whereEq("item", "dirt").select();
+            assertEquals(1, records.size());
+            assertTrue(records.get(0).getMessage().contains("WHERE item=?"));
+        } finally {
+            Logger.getGlobal().removeHandler(handler);
+        }
+    }
+
+    @Table(name = "indexed", indexes = @Index(columnList = "owner, time"))
+    public static class IndexedTable {
+        @Id
+        @Column
+        public Long id;
+        @Indexed
+        @Column
+        public String owner = "a";
+        @Column
+        public Long time = 0L;
+        @Column
+        public String item = "stone";
+    }
+
+    @Test
+    public void testPragmas() throws Exception {
+        Connection conn = db.newConnection();
+        try (Statement stmt = conn.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("PRAGMA journal_mode")) {
+                assertEquals("wal", rs.getString(1));
+            }
+            try (ResultSet rs = stmt.executeQuery("PRAGMA synchronous")) {
+                assertEquals(1, rs.getInt(1)); // NORMAL
+            }
+            try (ResultSet rs = stmt.executeQuery("PRAGMA busy_timeout")) {
+                assertEquals(5000, rs.getInt(1));
+            }
+        } finally {
+            db.recycleConnection(conn);
+        }
+
+        Plugin plugin = mock(Plugin.class);
+        when(plugin.getDataFolder()).thenReturn(new File("./"));
+        when(plugin.getLogger()).thenReturn(Logger.getGlobal());
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("file", "testdb.db");
+        conf.put("synchronous", "full");
+        try (RelationalDB full = DatabaseUtils.get("sqlite", plugin, conf, RelationalDB.class);
+             Statement stmt = full.getConnection().createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA synchronous")) {
+            assertEquals(2, rs.getInt(1));
+        }
+        conf.put("journal_mode", "wal; DROP TABLE test1");
+        try {
+            DatabaseUtils.get("sqlite", plugin, conf, RelationalDB.class);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    @Test
+    public void testWriteBehind() {
+        WriteBehindBuffer buffer = db.writeBehind();
+        for (long i = 1; i <= 2500; i++) {
+            buffer.insert(new TestTable(i, "test", UUID.randomUUID(), UUID.randomUUID()));
+        }
+        buffer.update(new TestTable(7L, "updated", UUID.randomUUID(), UUID.randomUUID()));
+        buffer.insert(new TestTable(1L, "duplicated", UUID.randomUUID(), UUID.randomUUID()));
+        buffer.flush();
+        assertEquals(2500, db.query(TestTable.class).count());
+        assertEquals("updated", db.query(TestTable.class).whereEq("id", 7L).selectUnique().string);
+        WriteBehindBuffer.Statistics statistics = buffer.getStatistics();
+        assertEquals(0, statistics.queueDepth);
+        assertEquals(2502, statistics.enqueued);
+        assertEquals(2501, statistics.written);
+        assertEquals(1, statistics.failed);
+
+        // queued rows are written when the database closes
+        db2.writeBehind().insert(new TestTable(3000L, "test", UUID.randomUUID(), UUID.randomUUID()));
+        db2.close();
+        db2 = DatabaseUtils.get("sqlite", mockPlugin, conf, RelationalDB.class);
+        assertEquals(2501, db2.query(TestTable.class).count());
+    }
+
+    @Test
+    public void testWriteBehindReleasesWriter() throws Exception {
+        WriteBehindBuffer.Settings settings = new WriteBehindBuffer.Settings();
+        settings.flushInterval = 50;
+        ((BaseDatabase) db).setWriteBehindSettings(settings);
+        WriteBehindBuffer buffer = db.writeBehind();
+        buffer.insert(new TestTable(1L, "behind", UUID.randomUUID(), UUID.randomUUID()));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (buffer.getStatistics().written < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, buffer.getStatistics().written);
+
+        // the background flush must not keep the writer lock
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> db.query(TestTable.class).insert(new TestTable(2L, "direct", UUID.randomUUID(), UUID.randomUUID())))
+                    .get(2, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(2, db.query(TestTable.class).count());
+
+        // nor a flush that failed on a duplicate key
+        buffer.insert(new TestTable(2L, "duplicated", UUID.randomUUID(), UUID.randomUUID()));
+        deadline = System.currentTimeMillis() + 5000;
+        while (buffer.getStatistics().failed < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, buffer.getStatistics().failed);
+        executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> db.query(TestTable.class).insert(new TestTable(3L, "direct", UUID.randomUUID(), UUID.randomUUID())))
+                    .get(2, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(3, db.query(TestTable.class).count());
+    }
+
+    @Test
+    public void testCloneHasOwnExecutorAndBuffer() throws Exception {
+        BaseDatabase original = (BaseDatabase) db;
+        original.getExecutor();
+        original.writeBehind();
+        java.lang.reflect.Method clone = SQLiteDatabase.class.getDeclaredMethod("clone");
+        clone.setAccessible(true);
+        BaseDatabase copy = (BaseDatabase) clone.invoke(original);
+        assertNotSame(original.getExecutor(), copy.getExecutor());
+        assertNotSame(original.writeBehind(), copy.writeBehind());
+        copy.close();
+
+        // closing the copy leaves the original working
+        assertFalse(original.getExecutor().isShutdown());
+        original.queryAsync(TestTable.class).insert(new TestTable(1L, "async", UUID.randomUUID(), UUID.randomUUID())).get(10, TimeUnit.SECONDS);
+        original.writeBehind().insert(new TestTable(2L, "behind", UUID.randomUUID(), UUID.randomUUID()));
+        original.writeBehind().flush();
+        assertEquals(2, db.query(TestTable.class).count());
+    }
+
+    @Test
+    public void testTransactionLocksWriterOnFirstWrite() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        List<Integer> counts = new ArrayList<>();
+        try {
+            db.inTransaction(tx -> {
+                Query<TestTable> query = tx.query(TestTable.class);
+                counts.add(query.count());
+                if (tx.getAttempt() == 0) {
+                    // a transaction that only read does not hold up other writers
+                    try {
+                        executor.submit(() -> db.query(TestTable.class).insert(new TestTable(1L, "other", UUID.randomUUID(), UUID.randomUUID())))
+                                .get(2, TimeUnit.SECONDS);
+                    } catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+                // its snapshot is stale now, so its first write fails and the work runs again
+                query.insert(new TestTable(2L, "tx", UUID.randomUUID(), UUID.randomUUID()));
+                return null;
+            });
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(Arrays.asList(0, 1), counts);
+        assertEquals(2, db.query(TestTable.class).count());
+
+        // the writer lock is taken on the first write and released by close on the same thread
+        try (Query<TestTable> query = db.queryTransactional(TestTable.class)) {
+            query.insert(new TestTable(3L, "tx", UUID.randomUUID(), UUID.randomUUID()));
+        }
+        db.query(TestTable.class).insert(new TestTable(4L, "direct", UUID.randomUUID(), UUID.randomUUID()));
+        assertEquals(3, db.query(TestTable.class).count());
+    }
+
+    @Cached(maxEntries = 2)
+    @Table(name = "cached")
+    public static class CachedTable {
+        @Id
+        @Column
+        public Long id;
+        @Column
+        public String name;
+        @Column
+        public boolean enabled;
+
+        public CachedTable() {
+        }
+
+        CachedTable(long id, String name) {
+            this.id = id;
+            this.name = name;
+            this.enabled = true;
+        }
+    }
+
+    @Test
+    public void testEntityCache() throws Exception {
+        db.query(CachedTable.class).insertAll(Arrays.asList(new CachedTable(1, "a"), new CachedTable(2, "b"), new CachedTable(3, "c")));
+        EntityCache<CachedTable> cache = ((BaseDatabase) db).getEntityCache(CachedTable.class);
+        CachedTable first = db.query(CachedTable.class).whereEq("id", 1L).selectUnique();
+        CachedTable second = db.query(CachedTable.class).whereEq("id", 1).selectUnique();
+        assertNotSame(first, second);
+        assertEquals("a", second.name);
+        assertTrue(second.enabled);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        db.query(CachedTable.class).whereEq("id", 1L).update(new CachedTable(1, "a2"), "name");
+        assertEquals("a2", db.query(CachedTable.class).whereEq("id", 1L).selectUnique().name);
+        db.query(CachedTable.class).whereEq("name", "a2").delete();
+        assertNull(db.query(CachedTable.class).whereEq("id", 1L).selectUniqueUnchecked());
+
+        db.query(CachedTable.class).whereEq("id", 2L).selectUnique();
+        db.query(CachedTable.class).whereEq("id", 3L).selectUnique();
+        db.query(CachedTable.class).whereEq("id", 2L).selectUnique();
+        assertEquals(2, cache.size());
+        db.query(CachedTable.class).insert(new CachedTable(4, "d"));
+        db.query(CachedTable.class).whereEq("id", 4L).selectUnique();
+        assertEquals(1, cache.getEvictions());
+
+        try (Query<CachedTable> query = db.queryTransactional(CachedTable.class)) {
+            query.whereEq("id", 2L).update(new CachedTable(2, "b2"), "name");
+            // not visible outside the transaction yet, and not cached from inside
+            assertEquals("b", db.query(CachedTable.class).whereEq("id", 2L).selectUnique().name);
+            assertEquals("b2", query.selectUnique().name);
+            query.commit();
+        }
+        assertEquals("b2", db.query(CachedTable.class).whereEq("id", 2L).selectUnique().name);
+    }
+
+    @Test
+    public void testSelectColumns() {
+        UUID uuid = UUID.randomUUID();
+        db.query(TestTable.class).insert(new TestTable(1L, "test", uuid, UUID.randomUUID()));
+        List<TestTable> rows = db.query(TestTable.class).whereEq("id", 1L).select("id", "uuid");
+        assertEquals(1, rows.size());
+        assertEquals(1L, (long) rows.get(0).id);
+        assertEquals(uuid, rows.get(0).uuid);
+        assertNull(rows.get(0).string);
+        assertNull(rows.get(0).uuid_indirect);
+        try {
+            db.query(TestTable.class).select("id", "nothing");
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    @Test
+    public void testUpsert() {
+        db.query(TestTable.class).insert(new TestTable(1L, "old", UUID.randomUUID(), UUID.randomUUID()));
+        UUID uuid = UUID.randomUUID();
+        db.query(TestTable.class).upsert(new TestTable(1L, "new", uuid, UUID.randomUUID()), "string");
+        db.query(TestTable.class).upsert(new TestTable(2L, "inserted", uuid, UUID.randomUUID()));
+        TestTable first = db.query(TestTable.class).whereEq("id", 1L).selectUnique();
+        assertEquals("new", first.string);
+        assertNotEquals(uuid, first.uuid);
+        assertEquals("inserted", db.query(TestTable.class).whereEq("id", 2L).selectUnique().string);
+
+        List<TestTable> records = new ArrayList<>();
+        for (long i = 1; i <= 1200; i++) {
+            records.add(new TestTable(i, "batch", uuid, UUID.randomUUID()));
+        }
+        db.query(TestTable.class).upsertAll(records);
+        assertEquals(1200, db.query(TestTable.class).whereEq("string", "batch").whereEq("uuid", uuid).count());
+    }
+
+    @Test
+    public void testUpsertSql() {
+        List<String> columns = Arrays.asList("a", "b");
+        assertEquals("INSERT INTO t(id,a,b) VALUES(?,?,?) ON CONFLICT(id) DO UPDATE SET a=excluded.a,b=excluded.b",
+                Dialect.SQLITE.appendUpsertClause(new StringBuilder("INSERT INTO t(id,a,b) VALUES(?,?,?)"), "id", columns).toString());
+        assertEquals("INSERT INTO t(id,a,b) VALUES(?,?,?) ON DUPLICATE KEY UPDATE a=VALUES(a),b=VALUES(b)",
+                Dialect.MYSQL.appendUpsertClause(new StringBuilder("INSERT INTO t(id,a,b) VALUES(?,?,?)"), "id", columns).toString());
+    }
+
+    @Table(name = "templates")
+    public static class TemplateTable {
+        @Id
+        @Column
+        public Long id;
+        @Column
+        public String b;
+        @Column
+        public Integer a;
+    }
+
+    @Test
+    public void testTableStructureConcurrent() throws Exception {
+        int threads = 8;
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<TableStructure<TemplateTable>>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(pool.submit(() -> {
+                barrier.await();
+                db.createTable(TemplateTable.class);
+                return TableStructure.fromClass(TemplateTable.class);
+            }));
+        }
+        TableStructure<TemplateTable> ts = TableStructure.fromClass(TemplateTable.class);
+        for (Future<TableStructure<TemplateTable>> f : futures) assertSame(ts, f.get(10, TimeUnit.SECONDS));
+        pool.shutdown();
+
+        assertEquals("SELECT a,b,id FROM templates", ts.getSelectSql());
+        assertEquals("INSERT INTO templates(a,b,id) VALUES(?,?,?)", ts.getInsertSql(1));
+        assertEquals("INSERT INTO templates(a,b,id) VALUES(?,?,?),(?,?,?)", ts.getInsertSql(2));
+        assertEquals("id=?", ts.getPrimaryKeyWhere());
+
+        TemplateTable row = new TemplateTable();
+        row.id = 1L;
+        row.a = 2;
+        row.b = "b";
+        db.query(TemplateTable.class).insert(row);
+        assertEquals("b", db.query(TemplateTable.class).whereEq("id", 1L).selectUnique().b);
+    }
+
+    @Table(name = "blobs")
+    public static class BlobTable {
+        @Id
+        @Column
+        public Long id;
+        @Column
+        public byte[] data;
+    }
+
+    @Test
+    public void testByteArrayColumn() {
+        BlobTable record = new BlobTable();
+        record.id = 1L;
+        record.data = new byte[]{0, 1, 2, (byte) 0xff, 0x0a, 0x78};
+        db.query(BlobTable.class).insert(record);
+        BlobTable empty = new BlobTable();
+        empty.id = 2L;
+        empty.data = new byte[0];
+        db.query(BlobTable.class).insertAll(Collections.singletonList(empty));
+        assertArrayEquals(record.data, db.query(BlobTable.class).whereEq("id", 1L).selectUnique().data);
+        assertArrayEquals(new byte[0], db.query(BlobTable.class).whereEq("id", 2L).selectUnique().data);
+    }
+
+    @Test
+    public void testParseResultSetByLabel() throws Exception {
+        db.query(PrimitiveTable.class).insertAll(Collections.singletonList(new PrimitiveTable()));
+        PrimitiveTable record = new PrimitiveTable();
+        record.id = 3;
+        record.count = 5;
+        record.price = 2.5;
+        record.enabled = true;
+        record.note = "three";
+        db.query(PrimitiveTable.class).insert(record);
+        try (Statement stmt = db.getConnection().createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT note AS NOTE, total, enabled, ratio, price, count, id, 1 AS extra FROM primitives ORDER BY id")) {
+            List<PrimitiveTable> rows = BundledSQLUtils.parseResultSet(rs, PrimitiveTable.class);
+            assertEquals(2, rows.size());
+            assertNull(rows.get(0).note);
+            assertEquals(5, rows.get(1).count);
+            assertEquals(2.5, rows.get(1).price, 0);
+            assertTrue(rows.get(1).enabled);
+            assertEquals("three", rows.get(1).note);
+        }
+    }
+
+    @Test
+    public void testGetObjectFromResultSet() throws Exception {
+        TableStructure<PrimitiveTable> table = TableStructure.fromClass(PrimitiveTable.class);
+        List<PrimitiveTable> rows = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            PrimitiveTable row = new PrimitiveTable();
+            row.id = i;
+            row.count = i * 10;
+            rows.add(row);
+        }
+        db.query(PrimitiveTable.class).insertAll(rows);
+        List<String> columns = Arrays.asList("id", "count");
+        try (Statement stmt = db.getConnection().createStatement()) {
+            for (String sql : Arrays.asList("SELECT id, count FROM primitives ORDER BY id", "SELECT count, 0 AS x, id FROM primitives ORDER BY id")) {
+                try (ResultSet rs = stmt.executeQuery(sql)) {
+                    for (int i = 1; rs.next(); i++) {
+                        PrimitiveTable row = table.getObjectFromResultSet(rs, columns);
+                        assertEquals(i, row.id);
+                        assertEquals(i * 10, row.count);
+                    }
+                }
+            }
+            // a primitive field can not hold NULL
+            try (ResultSet rs = stmt.executeQuery("SELECT id, NULL AS count FROM primitives")) {
+                assertTrue(rs.next());
+                table.getObjectFromResultSet(rs, columns);
+                fail();
+            } catch (java.sql.SQLException ex) {
+                assertTrue(ex.getMessage().contains("primitives.count"));
+            }
+        }
+    }
+
+    @Test
+    public void testInAndRangePredicates() {
+        List<TestTable> records = new ArrayList<>();
+        for (long i = 1; i <= 2500; i++) {
+            records.add(new TestTable(i, i % 2 == 0 ? "even" : "odd", UUID.randomUUID(), UUID.randomUUID()));
+        }
+        db.query(TestTable.class).insertAll(records);
+
+        List<Long> ids = new ArrayList<>();
+        for (long i = 0; i <= 2600; i += 2) ids.add(i);
+        assertEquals(1250, db.query(TestTable.class).whereIn("id", ids).select().size());
+        assertEquals(1250, db.query(TestTable.class).whereIn("id", ids).count());
+        assertEquals(0, db.query(TestTable.class).whereIn("id", ids).whereEq("string", "odd").count());
+        assertEquals(0, db.query(TestTable.class).whereIn("id", Collections.emptyList()).count());
+        try {
+            db.query(TestTable.class).whereIn("id", ids).orderBy("id", Query.Order.ASC).select();
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+
+        assertEquals(11, db.query(TestTable.class).between("id", 10L, 20L).count());
+        assertEquals(9, db.query(TestTable.class).where("id", ">", 10L).where("id", "<", 20L).count());
+        assertEquals(8, db.query(TestTable.class).where("id", "<", 11L).where("id", "<>", 3L).where("id", "<>", 4L).count());
+
+        StatementCache.Statistics stats = ((BaseDatabase) db).getStatementCacheStatistics();
+        db.query(TestTable.class).whereIn("id", Arrays.asList(1L, 2L, 3L, 4L, 5L)).select();
+        stats.reset();
+        List<TestTable> seven = db.query(TestTable.class).whereIn("id", Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L, 7L)).select();
+        assertEquals(7, seven.size());
+        assertEquals(1, stats.getHits());
+
+        db.query(TestTable.class).whereIn("id", ids).delete();
+        assertEquals(1250, db.query(TestTable.class).count());
+        db.query(TestTable.class).whereIn("id", Arrays.asList(1L, 3L)).update(new TestTable(0L, "one or three", null, null), "string");
+        assertEquals(2, db.query(TestTable.class).whereEq("string", "one or three").count());
+    }
+
+    @Test
+    public void testAggregates() throws Exception {
+        Query<PrimitiveTable> empty = db.query(PrimitiveTable.class);
+        assertEquals(0, empty.sumLong("count"));
+        assertTrue(Double.isNaN(empty.avg("price")));
+        assertNull(empty.max("note"));
+        List<PrimitiveTable> rows = new ArrayList<>();
+        for (int i = 1; i <= 6; i++) {
+            PrimitiveTable row = new PrimitiveTable();
+            row.id = i;
+            row.count = i;
+            row.price = i * 0.5;
+            row.enabled = i % 2 == 0;
+            row.note = i <= 3 ? "low" : "high";
+            rows.add(row);
+        }
+        db.query(PrimitiveTable.class).insertAll(rows);
+
+        assertEquals(21, db.query(PrimitiveTable.class).sumLong("count"));
+        assertEquals(10.5, db.query(PrimitiveTable.class).sum("price"), 1e-9);
+        assertEquals(2.25, db.query(PrimitiveTable.class).where("count", ">", 2).avg("price"), 1e-9);
+        assertEquals(Integer.valueOf(6), db.query(PrimitiveTable.class).max("count"));
+        assertEquals("high", db.query(PrimitiveTable.class).min("note"));
+
+        Map<String, Integer> counts = db.query(PrimitiveTable.class).whereEq("enabled", true).<String>groupBy("note").count();
+        assertEquals(Arrays.asList("high", "low"), new ArrayList<>(counts.keySet()));
+        assertEquals(Integer.valueOf(2), counts.get("high"));
+        assertEquals(Integer.valueOf(1), counts.get("low"));
+        Map<Boolean, Long> sums = db.query(PrimitiveTable.class).<Boolean>groupBy("enabled").sumLong("count");
+        assertEquals(Long.valueOf(12), sums.get(true));
+        assertEquals(Long.valueOf(9), sums.get(false));
+        assertEquals(Integer.valueOf(3), db.query(PrimitiveTable.class).<String>groupBy("note").<Integer>max("count").get("low"));
+        try {
+            db.query(PrimitiveTable.class).sum("note");
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        Map<String, Double> avgs = db.queryAsync(PrimitiveTable.class).<String>groupBy("note").avg("price").get(10, TimeUnit.SECONDS);
+        assertEquals(2.5, avgs.get("high"), 1e-9);
+        assertEquals(1.0, avgs.get("low"), 1e-9);
+    }
+
+    @Table(name = "primitives")
+    public static class PrimitiveTable {
+        @Id
+        @Column
+        public long id;
+        @Column
+        public int count;
+        @Column
+        public double price;
+        @Column
+        public float ratio;
+        @Column
+        public boolean enabled;
+        @Column
+        private String note;
+
+        private long total;
+
+        @Column(name = "total")
+        public long getTotal() {
+            return total;
+        }
+
+        public void setTotal(long total) {
+            this.total = total;
+        }
+    }
+
+    @Test
+    public void testPrimitiveColumns() {
+        PrimitiveTable record = new PrimitiveTable();
+        record.id = 7;
+        record.count = 42;
+        record.price = 1.5;
+        record.ratio = 0.25f;
+        record.enabled = true;
+        record.note = "private";
+        record.total = Long.MAX_VALUE;
+        db.query(PrimitiveTable.class).insert(record);
+        db.query(PrimitiveTable.class).insertAll(Collections.singletonList(new PrimitiveTable()));
+        PrimitiveTable ret = db.query(PrimitiveTable.class).whereEq("id", 7L).selectUnique();
+        assertEquals(42, ret.count);
+        assertEquals(1.5, ret.price, 0);
+        assertEquals(0.25f, ret.ratio, 0);
+        assertTrue(ret.enabled);
+        assertEquals("private", ret.note);
+        assertEquals(Long.MAX_VALUE, ret.getTotal());
+        assertFalse(db.query(PrimitiveTable.class).whereEq("id", 0L).selectUnique().enabled);
+    }
+
+    @Test
+    public void testQueryMetrics() {
+        Plugin plugin = mock(Plugin.class);
+        when(plugin.getDataFolder()).thenReturn(new File("./"));
+        when(plugin.getLogger()).thenReturn(Logger.getGlobal());
+        when(plugin.getName()).thenReturn("MetricsTest");
+        Map<String, Object> conf = new HashMap<>(this.conf);
+        conf.put("metrics", "true");
+        conf.put("slow_query_threshold", "50");
+        assertNull(QueryMetrics.forPlugin("MetricsTest"));
+        assertNull(((BaseDatabase) db).getMetrics());
+        try (RelationalDB measured = DatabaseUtils.get("sqlite", plugin, conf, RelationalDB.class)) {
+            QueryMetrics metrics = ((BaseDatabase) measured).getMetrics();
+            assertSame(metrics, QueryMetrics.forPlugin("MetricsTest"));
+            assertTrue(QueryMetrics.getRegistered().contains(metrics));
+            for (long i = 1; i <= 10; i++) {
+                measured.query(TestTable.class).insert(new TestTable(i, "test", UUID.randomUUID(), UUID.randomUUID()));
+            }
+            assertEquals(10, measured.query(TestTable.class).select().size());
+            assertEquals(10, measured.query(TestTable.class).count());
+            try {
+                measured.query(TestTable.class).insert(new TestTable(1L, "duplicated", UUID.randomUUID(), UUID.randomUUID()));
+                fail();
+            } catch (RuntimeException ignored) {
+            }
+
+            Map<String, QueryMetrics.Snapshot> byOperation = metrics.getSnapshots().stream()
+                    .filter(s -> s.table.equals("test1"))
+                    .collect(Collectors.toMap(s -> s.operation, s -> s));
+            QueryMetrics.Snapshot insert = byOperation.get("INSERT");
+            assertEquals(11, insert.count);
+            assertEquals(1, insert.errors);
+            assertEquals(10, insert.rows);
+            assertEquals(2, byOperation.get("SELECT").count);
+            assertEquals(11, byOperation.get("SELECT").rows); // the rows selected and the count
+            long bucketed = 0;
+            for (long n : insert.histogram) bucketed += n;
+            assertEquals(insert.count, bucketed);
+            assertTrue(insert.getPercentileMillis(0.99) <= insert.maxNanos / 1e6);
+
+            assertEquals(50, metrics.getSlowQueryThreshold());
+            metrics.record("test1", "SELECT", "SELECT id FROM test1 WHERE id IN (?,?,?,?,?)", 60_000_000L, 5, false);
+            List<QueryMetrics.SlowQuery> slowQueries = metrics.getSlowQueries();
+            assertEquals("SELECT id FROM test1 WHERE id IN (?,...)", slowQueries.get(slowQueries.size() - 1).sql);
+            metrics.reset();
+            assertTrue(metrics.getSnapshots().isEmpty());
+        }
+        assertNull(QueryMetrics.forPlugin("MetricsTest"));
+    }
+
+    @Test
+    public void testBundledSQL() throws Exception {
+        Plugin plugin = mock(Plugin.class);
+        when(plugin.getName()).thenReturn("BundledTest");
+        String script = "-- a script; with comments\n" +
+                "CREATE TABLE {{table}} (id INTEGER PRIMARY KEY, string TEXT);\n" +
+                "/* seed; rows */ INSERT INTO {{table}} VALUES (1, 'semi;colon');\n" +
+                "INSERT INTO {{table}} VALUES (2, 'it''s');\n";
+        when(plugin.getResource("sql/create.sql")).thenAnswer(i -> new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)));
+        when(plugin.getResource("sql/insert.sql")).thenAnswer(i -> new ByteArrayInputStream("INSERT INTO {{table}} VALUES (?, ?)".getBytes(StandardCharsets.UTF_8)));
+        when(plugin.getResource("sql/select.sql")).thenAnswer(i -> new ByteArrayInputStream("SELECT * FROM {{table}} WHERE id >= ? ORDER BY id".getBytes(StandardCharsets.UTF_8)));
+        Map<String, String> replacement = Collections.singletonMap("table", "bundled");
+        Connection conn = db.getConnection();
+        try {
+            assertArrayEquals(new int[]{0, 1, 1}, BundledSQLUtils.executeBundledScript(plugin, conn, "create.sql", replacement));
+            try (BundledSQLUtils.BundledStatement insert = BundledSQLUtils.prepareBundled(plugin, conn, "insert.sql", replacement)) {
+                insert.execute(3L, "three");
+                for (long i = 4; i <= 10; i++) {
+                    insert.addBatch(i, "batch");
+                }
+                assertEquals(7, insert.executeBatch().length);
+            }
+            for (int i = 0; i < 3; i++) {
+                List<BundledRow> rows = BundledSQLUtils.queryBundledAs(plugin, conn, "select.sql", new HashMap<>(replacement), BundledRow.class, 2L);
+                assertEquals(9, rows.size());
+                assertEquals("it's", rows.get(0).string);
+                assertEquals("three", rows.get(1).string);
+            }
+            verify(plugin, times(1)).getResource("sql/select.sql");
+            BundledSQLUtils.clearCache(plugin);
+            assertEquals("semi;colon", BundledSQLUtils.queryBundledAs(plugin, conn, "select.sql", replacement, BundledRow.class, 1L).get(0).string);
+            verify(plugin, times(2)).getResource("sql/select.sql");
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("DROP TABLE bundled");
+            }
+        } finally {
+            db.recycleConnection(conn);
+        }
+    }
+
+    @Test
+    public void testSplitStatements() {
+        assertEquals(Arrays.asList("SELECT ';'", "SELECT \"a;b\"", "SELECT 1"),
+                BundledSQLUtils.splitStatements("SELECT ';'; -- c;\nSELECT \"a;b\" /* ; */;;SELECT 1", Dialect.SQLITE));
+        // MySQL: backslash escapes in text and # line comments
+        assertEquals(Arrays.asList("SELECT 'it\\'s; fine'", "SELECT \"a\\\";b\"", "SELECT `a\\`", "SELECT 1"),
+                BundledSQLUtils.splitStatements("SELECT 'it\\'s; fine'; # c;\nSELECT \"a\\\";b\";SELECT `a\\`;SELECT 1", Dialect.MYSQL));
+        // elsewhere a backslash is a plain character and # is not a comment
+        assertEquals(Arrays.asList("SELECT 'a\\'", "SELECT 1 #", "SELECT 2"),
+                BundledSQLUtils.splitStatements("SELECT 'a\\';SELECT 1 #;SELECT 2", Dialect.SQLITE));
+    }
+
+    @Table(name = "bundled")
+    public static class BundledRow {
+        @Id
+        @Column
+        public Long id;
+        @Column
+        public String string;
+    }
+
+    @Test
+    public void testSingleWriterMultiReader() throws Exception {
+        SQLiteDatabase sqlite = (SQLiteDatabase) db;
+        ConnectionPool readers = sqlite.getReaderPool();
+        assertNotNull(readers);
+        db.query(TestTable.class).insert(new TestTable(1L, "test", UUID.randomUUID(), UUID.randomUUID()));
+        long borrowed = readers.getStatistics().borrowCount;
+        assertEquals(1, db.query(TestTable.class).select().size());
+        assertEquals(borrowed + 1, readers.getStatistics().borrowCount);
+        try (Query<TestTable> query = db.queryTransactional(TestTable.class)) {
+            query.count();
+            assertEquals(borrowed + 1, readers.getStatistics().borrowCount);
+        }
+
+        Connection reader = sqlite.borrowReadConnection();
+        try (Statement stmt = reader.createStatement()) {
+            stmt.executeUpdate("DELETE FROM test1");
+            fail();
+        } catch (SQLiteException ignored) {
+        } finally {
+            sqlite.releaseReadConnection(reader);
+        }
+
+        // writers are serialized, a read-then-write transaction whose snapshot went stale
+        // before its first write fails with SQLITE_BUSY_SNAPSHOT and is run again
+        ((BaseDatabase) db).setTransactionRetries(100, 1);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            long base = 100 + t * 100;
+            futures.add(pool.submit(() -> {
+                for (long i = 0; i < 20; i++) {
+                    long id = base + i;
+                    db.inTransaction(tx -> {
+                        Query<TestTable> query = tx.query(TestTable.class);
+                        int count = query.count();
+                        query.insert(new TestTable(id, "count " + count, UUID.randomUUID(), UUID.randomUUID()));
+                        return null;
+                    });
+                    db.query(TestTable.class).whereEq("id", id).select();
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) future.get(60, TimeUnit.SECONDS);
+        pool.shutdown();
+        assertEquals(81, db.query(TestTable.class).count());
+        // serialized transactions each saw a different count
+        assertEquals(80, db.query(TestTable.class).where("id", ">=", 100L).select().stream().map(row -> row.string).distinct().count());
+    }
+
+    @Test
+    public void testCompiledQuery() {
+        for (long i = 1; i <= 10; i++) {
+            db.query(TestTable.class).insert(new TestTable(i, i % 2 == 0 ? "even" : "odd", UUID.randomUUID(), UUID.randomUUID()));
+        }
+        CompiledQuery<TestTable> byId = db.query(TestTable.class).whereEq("id", CompiledQuery.PARAM).compile();
+        assertEquals(1, byId.getParameterCount());
+        for (long i = 1; i <= 10; i++) {
+            assertEquals(Long.valueOf(i), byId.selectUnique(i).id);
+        }
+        assertNull(byId.selectUniqueUnchecked(11L));
+
+        // fixed values and placeholders mixed, placeholders bound in the order they were added
+        CompiledQuery<TestTable> range = db.query(TestTable.class)
+                .where("id", "<=", CompiledQuery.PARAM)
+                .whereEq("string", "even")
+                .where("id", ">", CompiledQuery.PARAM)
+                .orderBy("id", Query.Order.DESC)
+                .compile();
+        List<TestTable> rows = range.select(8L, 2L);
+        assertEquals(Arrays.asList(8L, 6L, 4L), rows.stream().map(row -> row.id).collect(Collectors.toList()));
+        assertEquals(3, range.count(8L, 2L));
+        assertEquals(2, db.query(TestTable.class).between("id", CompiledQuery.PARAM, CompiledQuery.PARAM).compile().count(3L, 4L));
+
+        byId.delete(5L);
+        assertNull(byId.selectUniqueUnchecked(5L));
+        assertEquals(9, db.query(TestTable.class).count());
+
+        try {
+            byId.select();
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        try {
+            db.query(TestTable.class).whereEq("id", CompiledQuery.PARAM).select();
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+    }
+
+    @Test
+    public void testInTransaction() {
+        BaseDatabase base = (BaseDatabase) db;
+        base.setTransactionRetries(2, 1);
+        db.query(CachedTable.class).insert(new CachedTable(1, "a"));
+        assertEquals("a", db.query(CachedTable.class).whereEq("id", 1L).selectUnique().name);
+
+        // several tables, one commit
+        long count = db.inTransaction(tx -> {
+            tx.query(TestTable.class).insert(new TestTable(1L, "tx", UUID.randomUUID(), UUID.randomUUID()));
+            CachedTable row = tx.query(CachedTable.class).whereEq("id", 1L).selectUnique();
+            row.name = "b";
+            tx.query(CachedTable.class).whereEq("id", 1L).update(row, "name");
+            return (long) tx.query(TestTable.class).count();
+        });
+        assertEquals(1L, count);
+        assertEquals("b", db.query(CachedTable.class).whereEq("id", 1L).selectUnique().name);
+
+        // a throwing unit of work leaves nothing behind
+        try {
+            db.inTransaction(tx -> {
+                tx.query(TestTable.class).insert(new TestTable(2L, "tx", UUID.randomUUID(), UUID.randomUUID()));
+                tx.query(CachedTable.class).whereEq("id", 1L).delete();
+                throw new IllegalStateException("abort");
+            });
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+        assertEquals(1, db.query(TestTable.class).count());
+        assertEquals("b", db.query(CachedTable.class).whereEq("id", 1L).selectUnique().name);
+
+        // lock contention is retried, with the work of the failed attempt rolled back
+        List<Integer> attempts = new ArrayList<>();
+        db.inTransaction(tx -> {
+            attempts.add(tx.getAttempt());
+            tx.query(TestTable.class).insert(new TestTable(3L, "tx", UUID.randomUUID(), UUID.randomUUID()));
+            if (tx.getAttempt() == 0) {
+                throw new RuntimeException(new java.sql.SQLException("database is locked", null, 5));
+            }
+            return null;
+        });
+        assertEquals(Arrays.asList(0, 1), attempts);
+        assertEquals(2, db.query(TestTable.class).count());
+
+        // until the retries run out
+        attempts.clear();
+        try {
+            db.inTransaction(tx -> {
+                attempts.add(tx.getAttempt());
+                throw new RuntimeException(new java.sql.SQLException("database is locked", null, 5));
+            });
+            fail();
+        } catch (RuntimeException ignored) {
+        }
+        assertEquals(Arrays.asList(0, 1, 2), attempts);
+
+        TransactionContext.Statistics statistics = base.getTransactionStatistics();
+        assertEquals(4, statistics.getTransactions());
+        assertEquals(3, statistics.getRetries());
+        assertEquals(2, statistics.getFailures());
+    }
+
+    @Test
+    public void testRowChangeFeed() throws Exception {
+        Plugin subscriber = mock(Plugin.class);
+        when(subscriber.isEnabled()).thenReturn(true);
+        when(subscriber.getLogger()).thenReturn(Logger.getGlobal());
+        BlockingQueue<List<RowChangeFeed.RowChange>> batches = new LinkedBlockingQueue<>();
+        try (RowChangeFeed.Subscription subscription = RowChangeFeed.subscribe(subscriber, TestTable.class, batches::add)) {
+            assertEquals(TestTable.class, subscription.getTableClass());
+            assertTrue(RowChangeFeed.hasSubscribers(TestTable.class));
+            assertFalse(RowChangeFeed.hasSubscribers(CachedTable.class));
+            db.query(TestTable.class).insert(new TestTable(1L, "a", UUID.randomUUID(), UUID.randomUUID()));
+            db.query(TestTable.class).insertAll(Arrays.asList(
+                    new TestTable(2L, "b", UUID.randomUUID(), UUID.randomUUID()),
+                    new TestTable(3L, "c", UUID.randomUUID(), UUID.randomUUID())));
+            db.query(TestTable.class).whereEq("id", 2L).update(new TestTable(2L, "bb", null, null), "string");
+            db.query(TestTable.class).whereEq("string", "c").delete();
+            db.query(CachedTable.class).insert(new CachedTable(1, "not subscribed"));
+            try (Query<TestTable> query = db.queryTransactional(TestTable.class)) {
+                query.insert(new TestTable(4L, "rolled back", UUID.randomUUID(), UUID.randomUUID()));
+                query.rollback();
+            }
+            List<String> changes = new ArrayList<>();
+            try (Query<TestTable> query = db.queryTransactional(TestTable.class)) {
+                query.deleteByKeys(Arrays.asList(1L, 2L));
+                pollChanges(batches, changes, 5);
+                // not published before commit
+                assertNull(batches.poll(RowChangeFeed.getBatchDelay() * 3, TimeUnit.MILLISECONDS));
+                query.commit();
+            }
+            pollChanges(batches, changes, 7);
+            assertEquals(Arrays.asList("INSERT test1 1", "INSERT test1 2", "INSERT test1 3", "UPDATE test1 2", "DELETE test1 *",
+                    "DELETE test1 1", "DELETE test1 2"), changes);
+
+            // batched write-behind rows are published once their transaction commits
+            changes.clear();
+            WriteBehindBuffer buffer = db.writeBehind();
+            buffer.insert(new TestTable(5L, "behind", UUID.randomUUID(), UUID.randomUUID()));
+            buffer.insert(new TestTable(6L, "behind", UUID.randomUUID(), UUID.randomUUID()));
+            buffer.update(new TestTable(5L, "updated", UUID.randomUUID(), UUID.randomUUID()), "string");
+            buffer.flush();
+            pollChanges(batches, changes, 3);
+            assertEquals(Arrays.asList("INSERT test1 5", "INSERT test1 6", "UPDATE test1 5"), changes);
+        }
+        assertFalse(RowChangeFeed.hasSubscribers(TestTable.class));
+        assertFalse(RowChangeFeed.getSubscribedTables().contains(TestTable.class));
+
+        // a disabled plugin leaves no table classes behind
+        RowChangeFeed.subscribe(subscriber, TestTable.class, batches::add);
+        RowChangeFeed.subscribe(subscriber, CachedTable.class, batches::add);
+        RowChangeFeed.unsubscribeAll(subscriber);
+        assertFalse(RowChangeFeed.getSubscribedTables().contains(TestTable.class));
+        assertFalse(RowChangeFeed.getSubscribedTables().contains(CachedTable.class));
+
+        // nor one found disabled during delivery
+        Plugin disabled = mock(Plugin.class);
+        when(disabled.isEnabled()).thenReturn(false);
+        RowChangeFeed.subscribe(disabled, TestTable.class, batches::add);
+        db.query(TestTable.class).insert(new TestTable(7L, "not delivered", UUID.randomUUID(), UUID.randomUUID()));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (RowChangeFeed.hasSubscribers(TestTable.class) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(RowChangeFeed.getSubscribedTables().contains(TestTable.class));
+        assertTrue(batches.isEmpty());
+    }
+
+    private static void pollChanges(BlockingQueue<List<RowChangeFeed.RowChange>> batches, List<String> changes, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (changes.size() < count && System.currentTimeMillis() < deadline) {
+            List<RowChangeFeed.RowChange> batch = batches.poll(100, TimeUnit.MILLISECONDS);
+            if (batch != null) batch.forEach(change -> changes.add(change.toString()));
+        }
+    }
+
     @After
     public void closeDatabase() {
         db.close();